@@ -0,0 +1,235 @@
+package de.haug.gral;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Strategy that localizes with GRAL while the backlog is small and switches sensors to the much cheaper baseline
+ * while it is large. Once the reported backlog exceeds the high watermark, every sensor is switched with its next
+ * package, and once it has fallen to the low watermark, every sensor is switched back with its next package.
+ * A sensor that is switched to the baseline hands its pending packages over to the baseline, which starts at the
+ * last position GRAL has localized the sensor at. A sensor that is switched back emits what the baseline could
+ * localize and feeds the remaining packages into GRAL again, so no package is lost by switching. GRAL continues
+ * from the latest package the baseline has localized.
+ */
+public class AdaptiveStrategy implements LocalizationStrategy {
+    private final Locator locator;
+    private final Locator baselineLocator;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private boolean overloaded = false;
+    private int backlog = 0;
+
+    /**
+     * Sensors that are localized with the baseline and the packages the baseline of each one starts with
+     */
+    private final Map<Long, Package> baselineSensors = new HashMap<>();
+
+    /**
+     * Latest package the baseline has localized for each sensor that is localized with the baseline
+     */
+    private final Map<Long, Package> baselineLocalized = new HashMap<>();
+
+    private long switchesToBaseline = 0;
+    private long switchesToGral = 0;
+
+    /**
+     * Constructs a new adaptive strategy
+     * @param locator The locator to localize with GRAL
+     * @param highWatermark Backlog above which sensors are switched to the baseline
+     * @param lowWatermark Backlog at or below which sensors are switched back to GRAL
+     */
+    public AdaptiveStrategy(Locator locator, int highWatermark, int lowWatermark) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark)
+            throw new IllegalArgumentException("The watermarks have to satisfy 0 <= low <= high");
+
+        this.locator = locator;
+        this.baselineLocator = new Locator(locator.topologyAnalyzer, false, false);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    @Override
+    public void reportBacklog(int backlog) {
+        this.backlog = backlog;
+        if (backlog > highWatermark) {
+            overloaded = true;
+        } else if (backlog <= lowWatermark) {
+            overloaded = false;
+        }
+    }
+
+    @Override
+    public List<Package> feed(Package p) {
+        long sensorId = p.getSensorId();
+        boolean baseline = baselineSensors.containsKey(sensorId);
+
+        List<Package> result = new ArrayList<>();
+        if (overloaded && !baseline) {
+            result.addAll(switchToBaseline(sensorId));
+            baseline = true;
+        } else if (!overloaded && baseline) {
+            result.addAll(switchToGral(sensorId));
+            baseline = false;
+        }
+
+        if (baseline) {
+            result.addAll(localizedByBaseline(sensorId, baselineLocator.baseLineFeed(p)));
+        } else {
+            result.addAll(locator.feed(p));
+        }
+        return result;
+    }
+
+    /**
+     * Switches all sensors back to GRAL
+     * @return The packages localized by the baseline and by feeding the rest into GRAL again
+     */
+    @Override
+    public List<Package> finish() {
+        List<Package> result = new ArrayList<>();
+        for (Long sensorId : new ArrayList<>(baselineSensors.keySet())) {
+            result.addAll(switchToGral(sensorId));
+        }
+        result.addAll(locator.finish());
+        return result;
+    }
+
+    /**
+     * @return Whether sensors are currently switched to the baseline
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return The number of times a sensor has been switched to the baseline
+     */
+    public long getSwitchesToBaseline() {
+        return switchesToBaseline;
+    }
+
+    /**
+     * @return The number of times a sensor has been switched back to GRAL
+     */
+    public long getSwitchesToGral() {
+        return switchesToGral;
+    }
+
+    /**
+     * Hands the pending packages of a sensor over to the baseline
+     * @return The packages the baseline has localized right away
+     */
+    private List<Package> switchToBaseline(long sensorId) {
+        StrategySwitchEvent event = new StrategySwitchEvent();
+        event.begin();
+
+        Sensor s = locator.sensors.get(sensorId);
+        Package start = s == null ? null : createStartPackage(s);
+        List<Package> pending = s == null ? new LinkedList<>() : s.expirePackages(Long.MAX_VALUE);
+
+        // The baseline does not localize the packages up to its first relay peak. An artificial peak at the last
+        // known position of the sensor lets it localize the handed over packages.
+        List<Package> result = new ArrayList<>();
+        if (start != null) result.addAll(baselineLocator.baseLineFeed(start));
+        for (Package p : pending) {
+            result.addAll(baselineLocator.baseLineFeed(p));
+        }
+        baselineSensors.put(sensorId, start);
+        result = localizedByBaseline(sensorId, result);
+        switchesToBaseline++;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.sensorId = sensorId;
+            event.toBaseline = true;
+            event.backlog = backlog;
+            event.packageCount = pending.size();
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Localizes the packages of a sensor with the baseline and feeds the ones it cannot localize into GRAL again
+     * @return The localized packages
+     */
+    private List<Package> switchToGral(long sensorId) {
+        StrategySwitchEvent event = new StrategySwitchEvent();
+        event.begin();
+
+        Package start = baselineSensors.get(sensorId);
+        Sensor s = baselineLocator.sensors.get(sensorId);
+        List<Package> collected = s == null ? new LinkedList<>() : s.getBaselineSegmenter().getPackages();
+
+        List<Package> result = s == null ? new ArrayList<>()
+                : localizedByBaseline(sensorId, new ArrayList<>(baselineLocator.baseLineProcess(sensorId)));
+        Set<Package> localized = Collections.newSetFromMap(new IdentityHashMap<>());
+        localized.addAll(result);
+
+        baselineSensors.remove(sensorId);
+
+        // GRAL continues where the baseline has left off instead of where it has handed the sensor over
+        Package last = baselineLocalized.remove(sensorId);
+        if (last != null) locator.sensors.getOrCreate(sensorId).markLocalized(last);
+
+        int remaining = 0;
+        for (Package p : collected) {
+            if (p == start || localized.contains(p)) continue;
+            result.addAll(locator.feed(p));
+            remaining++;
+        }
+        switchesToGral++;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.sensorId = sensorId;
+            event.toBaseline = false;
+            event.backlog = backlog;
+            event.packageCount = remaining;
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Marks packages localized by the baseline as final, since they may have been emitted provisionally by GRAL,
+     * and remembers the latest one of the sensor
+     */
+    private List<Package> localizedByBaseline(long sensorId, List<Package> packages) {
+        Package start = baselineSensors.get(sensorId);
+        Package last = baselineLocalized.get(sensorId);
+        for (Package p : packages) {
+            p.markFinal();
+            if (p != start && p.getPosition() != null && (last == null || p.getTimestamp() >= last.getTimestamp())) {
+                last = p;
+            }
+        }
+        if (last != null) baselineLocalized.put(sensorId, last);
+        return packages;
+    }
+
+    /**
+     * @return A package with the strongest possible contact to the relay closest to the last known position of the
+     * sensor at the time of that position or null if the sensor has not been localized yet
+     */
+    private static Package createStartPackage(Sensor s) {
+        Position position = s.getLastKnownPosition();
+        if (position == null) return null;
+
+        Node relay = position.getStart() != null && (position.getDest() == null
+                || position.getPositionInBetween() * 2 < position.getTotalDistance())
+                ? position.getStart() : position.getDest();
+        if (relay == null) return null;
+
+        // The handed over packages are all newer than the last purge, but may be older than lastEpochEnd
+        return new Package(s.getId(), s.getLastPurge(), new WirelessContact(relay.getId(), Float.POSITIVE_INFINITY));
+    }
+}
@@ -0,0 +1,134 @@
+package de.haug.gral;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Splits the packages of a sensor into the stages of the baseline algorithm as they arrive.
+ * Consecutive packages with the same strongest relay form a run whose last package with the strongest signal is a
+ * relay peak. A stage ends with a peak and its packages are interpolated between the previous peak and that one,
+ * so every stage is localized as soon as the run of its peak ends. Only the packages since the last peak are kept.
+ * The packages up to the first peak cannot be localized and are dropped.
+ */
+class BaselineSegmenter implements Serializable {
+    /**
+     * Packages since the last peak that do not belong to the current run
+     */
+    private List<Package> stage = new ArrayList<>();
+
+    /**
+     * Packages with the same strongest relay that has not been the last peak's relay
+     */
+    private final List<Package> run = new ArrayList<>();
+    private float runMaxStrength;
+    private int runMaxIndex;
+
+    /**
+     * The last peak or null if there has been none
+     */
+    private Package lastPeak = null;
+    private long lastPeakRelay = -1;
+
+    /**
+     * Adds the next package of the sensor
+     * @param p The package
+     * @param t The topology to localize with
+     * @return The packages of the stage that has been completed by p, if any
+     */
+    List<Package> add(Package p, TopologyAnalyzer t) {
+        WirelessContact strongest = p.getStrongestRelay();
+        List<Package> result = !run.isEmpty() && (strongest == null || strongest.getNodeId() != getRunRelay())
+                ? endRun(t) : new LinkedList<>();
+
+        if (strongest == null || strongest.getNodeId() == lastPeakRelay) {
+            stage.add(p);
+        } else {
+            if (run.isEmpty() || strongest.getStrength() >= runMaxStrength) {
+                runMaxStrength = strongest.getStrength();
+                runMaxIndex = run.size();
+            }
+            run.add(p);
+        }
+        return result;
+    }
+
+    /**
+     * Ends the input of the sensor. The current run is ended and the packages behind the last peak are interpolated
+     * towards the strongest relay of the last package if it has one. The segmenter starts over afterwards.
+     * @param t The topology to localize with
+     * @return The packages that have been localized
+     */
+    List<Package> finish(TopologyAnalyzer t) {
+        List<Package> result = run.isEmpty() ? new LinkedList<>() : endRun(t);
+
+        if (!stage.isEmpty() && stage.get(stage.size() - 1).getStrongestRelay() != null) {
+            result.addAll(localizeStage(t));
+        }
+
+        stage = new ArrayList<>();
+        lastPeak = null;
+        lastPeakRelay = -1;
+        return result;
+    }
+
+    /**
+     * @return The packages that have not been localized yet in their order
+     */
+    List<Package> getPackages() {
+        List<Package> packages = new ArrayList<>(stage);
+        packages.addAll(run);
+        return packages;
+    }
+
+    /**
+     * @return Whether no packages are kept
+     */
+    boolean isEmpty() {
+        return stage.isEmpty() && run.isEmpty();
+    }
+
+    private long getRunRelay() {
+        return run.get(0).getStrongestRelay().getNodeId();
+    }
+
+    /**
+     * Completes the stage with the peak of the current run and starts the next stage with the rest of the run
+     */
+    private List<Package> endRun(TopologyAnalyzer t) {
+        stage.addAll(run.subList(0, runMaxIndex + 1));
+        List<Package> result = localizeStage(t);
+
+        lastPeak = run.get(runMaxIndex);
+        lastPeakRelay = getRunRelay();
+        stage = new ArrayList<>(run.subList(runMaxIndex + 1, run.size()));
+        run.clear();
+        return result;
+    }
+
+    /**
+     * Interpolates the positions of the stage between the last peak and the strongest relay of its last package
+     * @return The stage or an empty list if there has been no peak before it
+     */
+    private List<Package> localizeStage(TopologyAnalyzer t) {
+        if (lastPeak == null) return new LinkedList<>();
+
+        WirelessContact wcStrongestStart = lastPeak.getStrongestRelay();
+        Package end = stage.get(stage.size() - 1);
+        WirelessContact wcStrongestEnd = end.getStrongestRelay();
+
+        float dist = t.getDistance(wcStrongestStart.getNodeId(), wcStrongestEnd.getNodeId());
+        float timeDelta = end.getTimestamp() - lastPeak.getTimestamp();
+
+        for (Package p : stage) {
+            float start = p.getTimestamp() - lastPeak.getTimestamp();
+            p.setPosition(new Position(
+                    t.getRelay(wcStrongestStart.getNodeId()),
+                    t.getRelay(wcStrongestEnd.getNodeId()),
+                    Math.min(dist * start / timeDelta, dist),
+                    dist));
+        }
+        return new LinkedList<>(stage);
+    }
+}
@@ -0,0 +1,92 @@
+package de.haug.gral;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Strategy that localizes packages with the primitive baseline algorithm. Stages are emitted as soon as their relay
+ * peak is known, the rest is localized at the end of the input, sensor by sensor.
+ */
+public class BaselineStrategy implements LocalizationStrategy {
+    private final Locator locator;
+
+    /**
+     * Constructs a new baseline strategy
+     * @param locator The locator whose topology and sensors are used
+     */
+    public BaselineStrategy(Locator locator) {
+        this.locator = locator;
+    }
+
+    @Override
+    public List<Package> feed(Package p) {
+        return locator.baseLineFeed(p);
+    }
+
+    @Override
+    public List<Package> finish() {
+        List<Package> result = new LinkedList<>();
+        for (Long k : locator.sensors.keySet()) {
+            result.addAll(locator.baseLineProcess(k));
+        }
+        return result;
+    }
+
+    /**
+     * Finishes the sensors concurrently. Every sensor is finished on its own segmenter and the topology is only
+     * queried, so the sensors do not depend on each other. No packages may be fed while the sensors are finished.
+     * Only a few sensors are finished ahead of the consumer, so the results of the others are not kept in memory.
+     * @param pool The pool to finish the sensors on
+     * @param ordered Whether to pass the sensors to the consumer in the order of finish(), otherwise each sensor is
+     *                passed as soon as it is finished
+     * @param consumer Receives the localized packages of one sensor at a time on the calling thread
+     * @throws InterruptedException Thrown if the thread is interrupted
+     */
+    public void finish(ForkJoinPool pool, boolean ordered, Consumer<List<Package>> consumer)
+            throws InterruptedException {
+        List<Long> sensorIds = new ArrayList<>(locator.sensors.keySet());
+        int window = 2 * pool.getParallelism();
+
+        CompletionService<List<Package>> completion = new ExecutorCompletionService<>(pool);
+        Deque<Future<List<Package>>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < sensorIds.size() || !pending.isEmpty()) {
+                while (next < sensorIds.size() && pending.size() < window) {
+                    Long sensorId = sensorIds.get(next++);
+                    Callable<List<Package>> task = () -> locator.baseLineProcess(sensorId);
+                    // Ordered results are taken from the pending futures and must not pile up in the completion queue
+                    pending.add(ordered ? pool.submit(task) : completion.submit(task));
+                }
+
+                Future<List<Package>> done = ordered ? pending.peek() : completion.take();
+                List<Package> result = getResult(done);
+                pending.remove(done);
+                consumer.accept(result);
+            }
+        } finally {
+            for (Future<List<Package>> f : pending) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    private static List<Package> getResult(Future<List<Package>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -10,12 +10,33 @@ class Epoch implements Serializable {
     /**
      * List of packages in the epoch, contains at least one element and ordered by timestamp.
      */
-    List<Package> packages;
+    PackageList packages;
     private EpochType type;
     private float distance;
     private Long startTime;
     private WirelessContact relayContact;
-    private Map<Long, Package> strongestContact;
+    private StrongestContactTable strongestContact;
+
+    /**
+     * Number of packages with a contact to each node id
+     */
+    private LongIntHashMap contactCounts;
+
+    /**
+     * Incremented whenever packages are added or removed, i.e. the package positions become dirty
+     */
+    private int version = 0;
+
+    /**
+     * Value of version when the package positions were last set
+     */
+    private int positionedVersion = -1;
+
+    /**
+     * Id of the strongest relay contact of the latest package, valid while latestRelayVersion equals version
+     */
+    private Long latestRelayId;
+    private int latestRelayVersion = -1;
 
     /**
      * Can be set to end the epoch at a known location, may be null even for processed epochs.
@@ -39,10 +60,11 @@ class Epoch implements Serializable {
      */
     private Epoch(EpochType t) {
         this.type = t;
-        this.packages = new LinkedList<>();
+        this.packages = new PackageList();
         this.distance = Float.NaN;
         this.startTime = null;
-        this.strongestContact = new HashMap<>();
+        this.strongestContact = new StrongestContactTable();
+        this.contactCounts = new LongIntHashMap(4);
     }
 
     /**
@@ -82,36 +104,62 @@ class Epoch implements Serializable {
      */
     void addPackage(Package p) {
         packages.add(p);
+        countContacts(p, 1);
+        version++;
 
         setStrongestContact(p);
     }
 
+    /**
+     * Enables or disables the compact storage of packages without contacts that are added from now on
+     * @param compaction Whether to store such packages compactly
+     */
+    void setCompaction(boolean compaction) {
+        packages.setCompaction(compaction);
+    }
+
+    /**
+     * Adds a package before all other packages of the epoch without changing the strongest contacts
+     * @param p The package to add
+     */
+    void addFirstPackage(Package p) {
+        packages.add(0, p);
+        countContacts(p, 1);
+        version++;
+    }
+
+    /**
+     * Updates the contact counts for the contacts of a package
+     * @param p The package
+     * @param delta 1 if the package has been added, -1 if it has been removed
+     */
+    private void countContacts(Package p, int delta) {
+        for (WirelessContact c : p.contacts) {
+            int count = contactCounts.get(c.getNodeId());
+            contactCounts.put(c.getNodeId(), Math.max(count, 0) + delta);
+        }
+    }
+
     /**
      * Changes the strongestContact property if package p mandates it
      * @param p The new package
      */
     void setStrongestContact(Package p) {
-        LinkedList<WirelessContact> detectedSensors = new LinkedList<>(p.contacts);
-        detectedSensors.removeIf(c -> !Node.isSensor(c.getNodeId()));
-
-        for (WirelessContact wc : detectedSensors) {
-            long id = wc.getNodeId();
-            if (strongestContact.get(id) == null || strongestContact.get(id).getContactToNode(id) == null
-                    || strongestContact.get(id).getContactToNode(id).getStrength() <= wc.getStrength()) {
-                strongestContact.put(id, p);
-            }
-        }
+        strongestContact.offer(p);
     }
 
 
     /**
-     * Sets the new strongest package.
+     * Sets the new strongest package and recounts the contacts.
      * Call after packages have been removed from the epoch
      */
     void renewStrongestContactInfo () {
+        version++;
         strongestContact.clear();
+        contactCounts.clear();
         for (Package p : packages) {
             setStrongestContact(p);
+            countContacts(p, 1);
         }
     }
 
@@ -124,10 +172,18 @@ class Epoch implements Serializable {
     }
 
     /**
-     * @return A map of Sensor ids to packages for the strongest contact to each sensor
+     * @return The ids of the sensors encountered during the epoch in the order of their first encounter
+     */
+    long[] getContactedSensorIds() {
+        return strongestContact.getIds();
+    }
+
+    /**
+     * @param id Id of an encountered sensor
+     * @return The package with the strongest contact to the sensor or null if it was not encountered
      */
-    public Map<Long, Package> getStrongestContact() {
-        return strongestContact;
+    Package getStrongestContact(long id) {
+        return strongestContact.get(id);
     }
 
     /**
@@ -143,6 +199,18 @@ class Epoch implements Serializable {
         return packages.get(packages.size() - 1);
     }
 
+    /**
+     * @return The id of the strongest relay contact of the latest package or null if it has no relay contact
+     */
+    Long getLatestRelayId() {
+        if (latestRelayVersion != version) {
+            WirelessContact relayContact = getLatest().getStrongestRelay();
+            latestRelayId = relayContact == null ? null : relayContact.getNodeId();
+            latestRelayVersion = version;
+        }
+        return latestRelayId;
+    }
+
     /**
      * Gets the time at which the sensor motion in this package starts
      * @return this.startTime if it is set, otherwise the timestamp of the first package
@@ -166,12 +234,7 @@ class Epoch implements Serializable {
      * @return Whether the node had contact to the node specified in the arguments
      */
     boolean hasContactToNode(Node n) {
-        for (Package p : packages) {
-            if (p.getContactToNode(n.id) != null) {
-                return true;
-            }
-        }
-        return false;
+        return contactCounts.get(n.id) > 0;
     }
 
     /**
@@ -201,7 +264,7 @@ class Epoch implements Serializable {
      * @return The average distance travelled during a tick
      * @throws EpochException Thrown if distance has not been set or if the epoch contains no packages.
      */
-    private double getAverageSpeed() throws EpochException {
+    double getAverageSpeed() throws EpochException {
         if (Float.isNaN(distance)) {
             throw new EpochException("Distance not set");
         }
@@ -222,18 +285,42 @@ class Epoch implements Serializable {
     void setPackagePositions(float distance, Position startingPosition) throws EpochException {
         this.distance = distance;
 
-        for (Package p : packages) {
-            p.setPosition(new Position(startingPosition.getStart(), startingPosition.getDest(),
-                    (float)(startingPosition.getPositionInBetween() + (p.getTimestamp() - getStartTime())
-                            * getAverageSpeed()),
-                    startingPosition.getTotalDistance()));
-        }
+        packages.setPositions(startingPosition, getStartTime(), getAverageSpeed());
 
         if (endPosition == null) {
             endPosition = this.getLatest().position;
+            // The next calculation starts from this end position and may differ
+            this.positionedVersion = -1;
+        } else {
+            this.positionedVersion = version;
         }
     }
 
+    /**
+     * Sets the positions of all packages to the same position
+     * @param position The new position
+     */
+    void setPackagePositions(Position position) {
+        this.positionedVersion = version;
+        packages.setPositions(position);
+    }
+
+    /**
+     * @return Whether the package positions have been set from the current end position
+     * and no packages have been added or removed since
+     */
+    boolean hasCurrentPositions() {
+        return positionedVersion == version;
+    }
+
+    /**
+     * @param p A package of the epoch
+     * @return The position of p according to the last position calculation
+     */
+    Position getPackagePosition(Package p) {
+        return packages.positionOf(p);
+    }
+
     /**
      * Splits up an Epoch into two: All packages after splitPackage are removed from this Epoch and moved to a
      * newly constructed instance of the same type which will be returned
@@ -248,22 +335,70 @@ class Epoch implements Serializable {
         // Return nothing if this was the last package
         if (splitIndex >= packages.size()) return null;
 
-        List<Package> subList = packages.subList(splitIndex + 1, packages.size());
-
         Epoch returnEpoch = null;
-        if (subList.size() > 0) {
+        if (splitIndex + 1 < packages.size()) {
             this.endPosition = endPosition;
             returnEpoch = new Epoch(getType());
             returnEpoch.startTime = splitPackage.getTimestamp();
-            returnEpoch.packages.addAll(subList);
-
-            subList.clear();
-            renewStrongestContactInfo();
+            returnEpoch.setCompaction(packages.isCompaction());
+            for (Package p : removePackagesAfter(splitIndex)) {
+                returnEpoch.packages.add(p);
+                returnEpoch.countContacts(p, 1);
+            }
         }
 
         return returnEpoch;
     }
 
+    /**
+     * Removes all packages after an index from the epoch and updates the strongest contacts accordingly
+     * @param index Index of the last package to retain
+     * @return The removed packages, oldest first
+     */
+    List<Package> removePackagesAfter(int index) {
+        List<Package> subList = packages.subList(index + 1, packages.size());
+        List<Package> removed = new LinkedList<>(subList);
+        subList.clear();
+
+        if (removed.size() > 0) {
+            version++;
+            strongestContact.remove(removed, packages);
+            for (Package p : removed) {
+                countContacts(p, -1);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes all packages older than a deadline from the start of the epoch. The epoch then starts at the time of
+     * the last removed package. At least one package remains in the epoch.
+     * @param deadline Exclusive upper timestamp boundary of the packages to remove
+     * @return The removed packages, oldest first
+     */
+    List<Package> removePackagesBefore(long deadline) {
+        int count = 0;
+        while (count < packages.size() - 1 && packages.get(count).getTimestamp() < deadline) {
+            count++;
+        }
+
+        List<Package> expiring = packages.subList(0, count);
+        List<Package> removed = new LinkedList<>(expiring);
+        expiring.clear();
+
+        if (removed.size() > 0) {
+            startTime = removed.get(removed.size() - 1).getTimestamp();
+            version++;
+            strongestContact.remove(removed, packages);
+            for (Package p : removed) {
+                countContacts(p, -1);
+            }
+        }
+
+        return removed;
+    }
+
     /**
      * @param d The direction for which the matching EpochType should be determined
      * @return Returns the matching EpochType for d.
@@ -336,6 +471,22 @@ class Epoch implements Serializable {
         if ((index < 1 && backwards) || (index > epochs.size() - 2 && !backwards))
             throw new NoSuchElementException("Index at border of list");
 
+        int i = findLastNonVoyageEpoch(epochs, index, backwards);
+        if (i < 0) throw new NoSuchElementException("No relay contact found in the surroundings");
+        return epochs.get(i);
+    }
+
+    /**
+     * Returns the index of the next relay-contacting Epoch from epochs. Equivalent to getLastNonVoyageEpoch, but
+     * reports a missing match without throwing, which keeps it cheap on the feed path.
+     * @param epochs List of epochs
+     * @param index Index of reference element
+     * @param backwards Set to true for search in ]i;0], false for ]i;epochs.size[
+     * @return The index of the next relay-contacting Epoch or -1 if index at border of list or no match found
+     */
+    static int findLastNonVoyageEpoch(List<Epoch> epochs, int index, boolean backwards) {
+        if ((index < 1 && backwards) || (index > epochs.size() - 2 && !backwards)) return -1;
+
         boolean skip = true;
         for (int i = backwards ? index - 1 : index + 1; i < epochs.size() && i >= 0; i = backwards ? i - 1 : i + 1) {
             Epoch epoch = epochs.get(i);
@@ -348,9 +499,9 @@ class Epoch implements Serializable {
             }
             skip = false;
             if (!epoch.getType().equals(EpochType.VOYAGE)) {
-                return epoch;
+                return i;
             }
         }
-        throw new NoSuchElementException("No relay contact found in the surroundings");
+        return -1;
     }
 }
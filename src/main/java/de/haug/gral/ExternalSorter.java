@@ -0,0 +1,274 @@
+package de.haug.gral;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts string records by two long keys with bounded memory.
+ * Records are collected in memory until the memory budget is exceeded. They are then sorted and written to a
+ * temporary run file. Iterating the sorter merges all runs and the records still in memory. Only a bounded number of
+ * runs is read at the same time, so if there are more runs, the oldest ones are first merged into larger runs in
+ * several passes. Records with equal keys are returned in an unspecified order.
+ */
+class ExternalSorter implements Closeable {
+    /**
+     * A sorted record
+     */
+    static final class Record {
+        final long key;
+        final long order;
+        final String payload;
+
+        Record(long key, long order, String payload) {
+            this.key = key;
+            this.order = order;
+            this.payload = payload;
+        }
+    }
+
+    private static final Comparator<Record> RECORD_ORDER =
+            Comparator.<Record>comparingLong(r -> r.key).thenComparingLong(r -> r.order);
+
+    /**
+     * Estimated memory of a record besides its characters
+     */
+    private static final long RECORD_OVERHEAD = 64;
+
+    /**
+     * Size of the read buffer of every merged run
+     */
+    private static final int MERGE_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Default maximum number of runs that are read at the same time
+     */
+    static final int DEFAULT_MAX_FAN_IN = 64;
+
+    private final long memoryBudget;
+    private final int fanIn;
+    private Path directory;
+    private final List<Path> runs = new ArrayList<>();
+    private int runNumber = 0;
+    private List<Record> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+
+    /**
+     * Constructs a new sorter
+     * @param memoryBudget Approximate number of bytes the records in memory may occupy
+     */
+    ExternalSorter(long memoryBudget) {
+        this(memoryBudget, DEFAULT_MAX_FAN_IN);
+    }
+
+    /**
+     * Constructs a new sorter
+     * @param memoryBudget Approximate number of bytes the records in memory may occupy
+     * @param maxFanIn Maximum number of runs that are read at the same time, at least 2. Fewer runs are read if their
+     *                 buffers would exceed the memory budget.
+     */
+    ExternalSorter(long memoryBudget, int maxFanIn) {
+        if (maxFanIn < 2) throw new IllegalArgumentException("At least two runs have to be merged at a time");
+        this.memoryBudget = memoryBudget;
+        this.fanIn = (int)Math.max(2, Math.min(maxFanIn, memoryBudget / MERGE_BUFFER_SIZE));
+    }
+
+    /**
+     * Adds a record, spilling the records in memory to a run file if the memory budget is exceeded
+     * @param key The primary key
+     * @param order The secondary key
+     * @param payload The content of the record
+     * @throws IOException Thrown if a run file cannot be written
+     */
+    synchronized void add(long key, long order, String payload) throws IOException {
+        buffer.add(new Record(key, order, payload));
+        bufferedBytes += RECORD_OVERHEAD + 2L * payload.length();
+        if (bufferedBytes > memoryBudget) spill();
+    }
+
+    /**
+     * Merges all added records. No records may be added afterwards.
+     * @return An iterator over all records in key order
+     * @throws IOException Thrown if a run file cannot be read
+     */
+    synchronized Iterator<Record> sorted() throws IOException {
+        // The records in memory take the place of one run
+        while (runs.size() > fanIn - 1) {
+            mergeRuns(Math.min(fanIn, runs.size() - fanIn + 2));
+        }
+        buffer.sort(RECORD_ORDER);
+
+        PriorityQueue<Source> sources = openRuns(runs);
+        Source memory = new Source(buffer.iterator());
+        if (memory.advance()) sources.add(memory);
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !sources.isEmpty();
+            }
+
+            @Override
+            public Record next() {
+                Source source = sources.poll();
+                if (source == null) throw new NoSuchElementException();
+
+                Record record = source.current;
+                if (source.advance()) sources.add(source);
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Deletes all run files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        if (directory != null) Files.deleteIfExists(directory);
+        buffer = new ArrayList<>();
+    }
+
+    /**
+     * @return The number of run files
+     */
+    synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Writes the records in memory to a sorted run file
+     */
+    private void spill() throws IOException {
+        buffer.sort(RECORD_ORDER);
+
+        Path run = createRun();
+        try (DataOutputStream out = openRun(run)) {
+            for (Record r : buffer) {
+                write(out, r);
+            }
+        }
+        runs.add(run);
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Merges the oldest runs into a new run that is appended to the runs
+     * @param count Number of runs to merge
+     */
+    private void mergeRuns(int count) throws IOException {
+        List<Path> merged = new ArrayList<>(runs.subList(0, count));
+        Path run = createRun();
+        PriorityQueue<Source> sources = openRuns(merged);
+        try (DataOutputStream out = openRun(run)) {
+            while (!sources.isEmpty()) {
+                Source source = sources.poll();
+                write(out, source.current);
+                if (source.advance()) sources.add(source);
+            }
+        }
+
+        runs.subList(0, count).clear();
+        runs.add(run);
+        for (Path p : merged) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    private Path createRun() throws IOException {
+        if (directory == null) directory = Files.createTempDirectory("gral-sort");
+        return directory.resolve("run" + runNumber++);
+    }
+
+    private static DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), PackageFileReader.BUFFER_SIZE));
+    }
+
+    /**
+     * @return The sources of the runs that are not empty, ordered by their current record
+     */
+    private static PriorityQueue<Source> openRuns(List<Path> runs) throws IOException {
+        PriorityQueue<Source> sources = new PriorityQueue<>(Comparator.comparing((Source s) -> s.current, RECORD_ORDER));
+        for (Path run : runs) {
+            Source source = new Source(new DataInputStream(new BufferedInputStream(Files.newInputStream(run),
+                    MERGE_BUFFER_SIZE)));
+            if (source.advance()) sources.add(source);
+        }
+        return sources;
+    }
+
+    private static void write(DataOutputStream out, Record r) throws IOException {
+        byte[] bytes = r.payload.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(r.key);
+        out.writeLong(r.order);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Sorted records of the memory buffer or of a run file
+     */
+    private static final class Source {
+        private final Iterator<Record> iterator;
+        private final DataInputStream in;
+        Record current;
+
+        Source(Iterator<Record> iterator) {
+            this.iterator = iterator;
+            this.in = null;
+        }
+
+        Source(DataInputStream in) {
+            this.iterator = null;
+            this.in = in;
+        }
+
+        /**
+         * Moves to the next record, closing a run file at its end
+         * @return Whether there is a next record
+         */
+        boolean advance() {
+            if (iterator != null) {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current != null;
+            }
+
+            try {
+                long key;
+                try {
+                    key = in.readLong();
+                } catch (EOFException e) {
+                    in.close();
+                    current = null;
+                    return false;
+                }
+                long order = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                current = new Record(key, order, new String(bytes, StandardCharsets.UTF_8));
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package de.haug.gral;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded HTTP endpoint that accepts batches of packages as a JSON array per POST request.
+ * The array is parsed element by element from the request body and the batch is fed into the strategy as a whole.
+ * The packages localized by the batch are returned in the schema of the batch or written to a sink.
+ * A request takes a permit on the dispatcher thread of the server before it is handed to a worker thread, so requests
+ * beyond the concurrency limit are rejected with 503 instead of queueing up. The packages of all parsed batches that
+ * have not been fed yet are reported to the strategy as its backlog.
+ */
+class HttpIngestEndpoint implements Closeable {
+    /**
+     * Path of the endpoint
+     */
+    static final String PATH = "/packages";
+
+    static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+
+    /**
+     * Seconds to wait for the running requests when the endpoint is closed
+     */
+    static final int SHUTDOWN_TIMEOUT = 10;
+
+    private final LocalizationStrategy strategy;
+    private final PackageSink sink;
+    private final TopologyAnalyzer topologyAnalyzer;
+    private final List<Long[]> applyPairs;
+    private final int maxBatchSize;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    /**
+     * Packages of parsed batches that have not been fed yet
+     */
+    private final AtomicInteger backlog = new AtomicInteger();
+
+    private HttpServer server;
+
+    /**
+     * Whether the strategy has been finished, guarded by the strategy
+     */
+    private boolean finished = false;
+
+    /**
+     * Constructs a new endpoint
+     * @param strategy The strategy to feed
+     * @param sink The destination of localized packages or null to return them in the responses
+     * @param topologyAnalyzer The topology of the returned positions
+     * @param applyPairs Endpoint pairs applied to the positions of returned packages
+     * @param maxBatchSize Maximum number of packages per request
+     * @param maxConcurrentRequests Maximum number of requests that are handled at the same time
+     */
+    HttpIngestEndpoint(LocalizationStrategy strategy, PackageSink sink, TopologyAnalyzer topologyAnalyzer,
+                       List<Long[]> applyPairs, int maxBatchSize, int maxConcurrentRequests) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("The maximum batch size has to be positive");
+        if (maxConcurrentRequests < 1)
+            throw new IllegalArgumentException("The maximum number of concurrent requests has to be positive");
+
+        this.strategy = strategy;
+        this.sink = sink;
+        this.topologyAnalyzer = topologyAnalyzer;
+        this.applyPairs = applyPairs;
+        this.maxBatchSize = maxBatchSize;
+        this.permits = new Semaphore(maxConcurrentRequests);
+        // Every task holds a permit, so there is a thread for each one
+        this.executor = Executors.newFixedThreadPool(maxConcurrentRequests);
+    }
+
+    /**
+     * Binds the endpoint and starts handling requests
+     * @param address The address to listen on
+     * @throws IOException Thrown if the address cannot be bound
+     */
+    void start(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        // Without an executor the server calls handle on its dispatcher thread
+        server.setExecutor(null);
+        server.start();
+    }
+
+    /**
+     * @return The port the endpoint listens on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests and waits for the running ones before the strategy is finished. Requests that are
+     * still running after SHUTDOWN_TIMEOUT seconds are interrupted and not fed anymore. The packages the strategy
+     * localizes at the end of the input are written to the sink if there is one.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (strategy) {
+            finished = true;
+            List<Package> result = strategy.finish();
+            if (sink != null) {
+                for (Package r : result) {
+                    sink.accept(r, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects or dispatches a request on the dispatcher thread of the server
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            reject(exchange, 405, "Packages have to be posted");
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            reject(exchange, 503, "Too many concurrent requests");
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                Response response;
+                try {
+                    response = handleBatch(exchange);
+                } catch (RuntimeException e) {
+                    response = new Response(500, error(e.toString()));
+                } finally {
+                    // Released before responding, so the client may send its next batch as soon as it has the response
+                    permits.release();
+                }
+                try {
+                    respond(exchange, response.status, response.body);
+                } catch (IOException e) {
+                    // The client has gone away
+                } finally {
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            reject(exchange, 503, "The endpoint is shutting down");
+        }
+    }
+
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        try {
+            respond(exchange, status, error(message));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Parses and feeds a batch
+     * @return The response to the request
+     */
+    private Response handleBatch(HttpExchange exchange) {
+        List<Package> batch = new ArrayList<>();
+        boolean compat;
+        try (InputStream body = exchange.getRequestBody()) {
+            compat = parseBatch(new JSONTokener(new InputStreamReader(body, StandardCharsets.UTF_8)), batch);
+        } catch (BatchTooLargeException e) {
+            return new Response(413, error("Batches are limited to " + maxBatchSize + " packages"));
+        } catch (JSONException e) {
+            return new Response(400, error(e.getMessage()));
+        } catch (IOException e) {
+            return new Response(400, error("Failed to read the request: " + e.getMessage()));
+        }
+
+        List<Package> result = new ArrayList<>();
+        int fed = 0;
+        backlog.addAndGet(batch.size());
+        try {
+            // The strategy is not thread-safe, batches are fed one after another
+            synchronized (strategy) {
+                if (finished) return new Response(503, error("The endpoint is shutting down"));
+                for (Package p : batch) {
+                    fed++;
+                    strategy.reportBacklog(backlog.decrementAndGet());
+                    result.addAll(strategy.feed(p));
+                }
+                if (sink != null) {
+                    for (Package r : result) {
+                        sink.accept(r, compat);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            return new Response(500, error(e.toString()));
+        } finally {
+            // Packages behind a failed one are not fed
+            backlog.addAndGet(fed - batch.size());
+        }
+
+        if (sink != null) {
+            return new Response(202,
+                    String.format("{ \"accepted\": %d, \"localized\": %d }", batch.size(), result.size()));
+        }
+
+        StringBuilder json = new StringBuilder("[");
+        for (Package r : result) {
+            if (json.length() > 1) json.append(", ");
+            json.append(r.toJsonString(compat, applyPairs, topologyAnalyzer));
+        }
+        return new Response(200, json.append("]").toString());
+    }
+
+    /**
+     * Parses a JSON array of packages one element at a time
+     * @param tokener Tokener of the request body
+     * @param batch List to add the packages to
+     * @return Whether the first package uses the compat schema
+     * @throws JSONException Thrown if the body is not an array of packages
+     * @throws BatchTooLargeException Thrown if the array contains more than maxBatchSize packages
+     */
+    private boolean parseBatch(JSONTokener tokener, List<Package> batch) {
+        boolean compat = false;
+        if (tokener.nextClean() != '[') throw tokener.syntaxError("A batch has to be a JSON array");
+        if (tokener.nextClean() == ']') return false;
+        tokener.back();
+
+        while (true) {
+            Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject)) throw tokener.syntaxError("Batches may only contain package objects");
+            if (batch.size() >= maxBatchSize) throw new BatchTooLargeException();
+
+            JSONObject obj = (JSONObject)value;
+            if (batch.isEmpty()) compat = Main.isCompat(obj);
+            batch.add(Main.parsePackage(obj));
+
+            char c = tokener.nextClean();
+            if (c == ']') return compat;
+            if (c != ',') throw tokener.syntaxError("Expected ',' or ']'");
+        }
+    }
+
+    private static String error(String message) {
+        return new JSONObject().put("error", message).toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Status and JSON body of a response
+     */
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Thrown while parsing a batch that exceeds the maximum batch size
+     */
+    private static class BatchTooLargeException extends RuntimeException {
+    }
+}
@@ -0,0 +1,407 @@
+package de.haug.gral;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP server that accepts newline-delimited package JSON from many concurrent gateway connections and feeds it into a
+ * single localization strategy.
+ * Each connection is read on its own virtual thread if the JVM supports them. Otherwise the connections are spread
+ * over a few selector threads that read whichever connections have data, so any number of connections is served.
+ * The connections hand their packages to the locator thread through a bounded queue. If the locator falls behind,
+ * the connections stop reading and TCP flow control throttles the gateways. The length of the queue is reported to
+ * the strategy as its backlog before every package.
+ */
+class IngestServer implements Closeable {
+    /**
+     * Default number of packages that may wait for the locator thread
+     */
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Number of selector threads reading the connections if the JVM does not support virtual threads
+     */
+    private static final int SELECTOR_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of bytes a selector thread reads from a connection at a time
+     */
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * A parsed package and the schema it was received in
+     */
+    private static class Ingest {
+        final Package p;
+        final boolean compat;
+
+        Ingest(Package p, boolean compat) {
+            this.p = p;
+            this.compat = compat;
+        }
+    }
+
+    /**
+     * Queue element that stops the locator thread
+     */
+    private static final Ingest END = new Ingest(null, false);
+
+    private final LocalizationStrategy strategy;
+    private final PackageSink sink;
+    private final BlockingQueue<Ingest> queue;
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runs a virtual thread per connection or the selector loops
+     */
+    private final ExecutorService connections;
+
+    /**
+     * Whether the connections are read on virtual threads instead of selector loops
+     */
+    private final boolean virtualThreads;
+
+    /**
+     * The selector loops or null if the connections are read on virtual threads
+     */
+    private SelectorLoop[] selectorLoops;
+    private int nextSelectorLoop = 0;
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private Thread locatorThread;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new server
+     * @param strategy The strategy to feed, it is only accessed by the locator thread of the server
+     * @param sink The destination of localized packages
+     * @param queueCapacity Number of packages that may wait for the locator thread
+     */
+    IngestServer(LocalizationStrategy strategy, PackageSink sink, int queueCapacity) {
+        this.strategy = strategy;
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualThreadExecutor != null;
+        this.connections = virtualThreads ? virtualThreadExecutor
+                : Executors.newFixedThreadPool(SELECTOR_THREADS, r -> {
+                    Thread t = new Thread(r, "gral-selector");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Binds the server and starts accepting connections
+     * @param address The address to listen on
+     * @throws IOException Thrown if the address cannot be bound
+     */
+    void start(InetSocketAddress address) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+
+        if (!virtualThreads) {
+            selectorLoops = new SelectorLoop[SELECTOR_THREADS];
+            for (int i = 0; i < selectorLoops.length; i++) {
+                selectorLoops[i] = new SelectorLoop(Selector.open());
+                connections.execute(selectorLoops[i]);
+            }
+        }
+
+        locatorThread = new Thread(this::feedQueued, "gral-locator");
+        locatorThread.start();
+
+        acceptThread = new Thread(this::acceptConnections, "gral-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return The port the server listens on
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Whether the connections are read by selector threads instead of virtual threads
+     */
+    boolean usesSelectors() {
+        return selectorLoops != null;
+    }
+
+    /**
+     * Waits until the server has been closed and all queued packages have been fed
+     * @throws InterruptedException Thrown if the waiting thread is interrupted
+     */
+    void awaitTermination() throws InterruptedException {
+        locatorThread.join();
+    }
+
+    /**
+     * Stops accepting connections and lets the locator thread finish the queued packages
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        connections.shutdownNow();
+        try {
+            serverChannel.close();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        } finally {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (selectorLoops != null) {
+                    selectorLoops[nextSelectorLoop].register(channel);
+                    nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.length;
+                } else {
+                    connections.execute(() -> readConnection(channel));
+                }
+            } catch (IOException e) {
+                if (!closed) System.err.printf("Failed to accept connection: %s\n", e.getMessage());
+            } catch (RuntimeException e) {
+                // The executor rejects connections once the server is closed
+                if (!closed) throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads packages from a connection on a virtual thread until the gateway closes it
+     * @param channel The connection
+     */
+    private void readConnection(SocketChannel channel) {
+        channels.add(channel);
+
+        try (channel; BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8))) {
+            // The server may have been closed before the channel was registered
+            if (closed) return;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                queueLine(line);
+            }
+        } catch (IOException e) {
+            // Connections reset by the gateway or closed by the server are expected
+            if (!closed && !(e instanceof ClosedChannelException)) {
+                System.err.printf("Failed to read from a connection: %s\n", e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // The server is closed
+        } finally {
+            channels.remove(channel);
+        }
+    }
+
+    /**
+     * Parses a line and waits until the locator thread has room for the package
+     * @param line A line received from a connection
+     * @throws InterruptedException Thrown if the server is closed while waiting
+     */
+    private void queueLine(String line) throws InterruptedException {
+        if (line.isBlank()) return;
+
+        Ingest ingest;
+        try {
+            JSONObject obj = new JSONObject(line);
+            ingest = new Ingest(Main.parsePackage(obj), Main.isCompat(obj));
+        } catch (JSONException e) {
+            System.err.printf("Ignoring malformed line %s\n", line);
+            return;
+        }
+        queue.put(ingest);
+    }
+
+    /**
+     * Feeds the queued packages into the strategy until the server is closed and then finishes the strategy
+     */
+    private void feedQueued() {
+        boolean compat = false;
+        while (true) {
+            Ingest ingest;
+            try {
+                ingest = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (ingest == END) break;
+
+            List<Package> result;
+            compat = ingest.compat;
+            try {
+                strategy.reportBacklog(queue.size());
+                result = strategy.feed(ingest.p);
+            } catch (RuntimeException e) {
+                System.err.printf("Failed to localize package of sensor %d at %d: %s\n",
+                        ingest.p.getSensorId(), ingest.p.getTimestamp(), e);
+                continue;
+            }
+            for (Package r : result) {
+                sink.accept(r, ingest.compat);
+            }
+        }
+
+        try {
+            for (Package r : strategy.finish()) {
+                sink.accept(r, compat);
+            }
+        } catch (RuntimeException e) {
+            System.err.printf("Failed to localize the remaining packages: %s\n", e);
+        }
+    }
+
+    /**
+     * Reads the connections assigned to it on a single platform thread. Complete lines are queued for the locator
+     * thread, the rest of a line is kept per connection until more data arrives. While the queue is full the loop
+     * waits, so all of its connections are throttled together.
+     */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hands a new connection to the loop
+         */
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try (selector) {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) {
+                        channels.add(channel);
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+                    }
+
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        read(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) System.err.printf("Failed to select connections: %s\n", e.getMessage());
+            } catch (InterruptedException e) {
+                // The server is closed
+            } finally {
+                for (SocketChannel channel : registrations) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        // Closed anyway
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads what is available from a connection and queues the complete lines
+         */
+        private void read(SelectionKey key) throws InterruptedException {
+            SocketChannel channel = (SocketChannel)key.channel();
+            ByteArrayOutputStream line = (ByteArrayOutputStream)key.attachment();
+
+            int count;
+            buffer.clear();
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                // Connection reset by the gateway or closed by the server
+                count = -1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    queueLine(toLine(line));
+                } else {
+                    line.write(b);
+                }
+            }
+
+            if (count < 0) {
+                if (line.size() > 0) queueLine(toLine(line));
+                key.cancel();
+                channels.remove(channel);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Closed anyway
+                }
+            }
+        }
+
+        /**
+         * @return The collected line without a trailing carriage return, the collected bytes are reset
+         */
+        private String toLine(ByteArrayOutputStream bytes) {
+            String line = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            bytes.reset();
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+    }
+
+    /**
+     * @return An executor starting a virtual thread per connection or null if the JVM does not support virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package de.haug.gral;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.List;
+
+/**
+ * Flight Recorder event spanning one stage of the localization of a sensor's packages.
+ * The event is cheap enough to be left enabled in production. Only stages taking longer than the
+ * threshold are recorded unless the threshold is lowered in the recording settings.
+ */
+@Category({"GRAL", "Localization"})
+@StackTrace(false)
+@Threshold("1 ms")
+abstract class LocalizationEvent extends Event {
+    @Label("Sensor Id")
+    long sensorId;
+
+    @Label("Epoch Count")
+    @Description("Number of unresolved epochs of the sensor after the stage")
+    int epochCount;
+
+    @Label("Package Count")
+    @Description("Number of unresolved packages of the sensor after the stage")
+    int packageCount;
+
+    @Label("Result Size")
+    @Description("Number of localized packages emitted by the stage")
+    int resultSize;
+
+    @Label("Checkpoint Count")
+    @Description("Number of rendez-vous checkpoints of the sensor waiting to be used after the stage")
+    int checkpointCount;
+
+    /**
+     * Ends the event and commits it with the state of the sensor if the event is enabled
+     * @param s The sensor that was processed, may be null
+     * @param resultSize Number of localized packages emitted by the stage
+     */
+    void finish(Sensor s, int resultSize) {
+        end();
+        if (!shouldCommit()) return;
+
+        if (s != null) {
+            this.sensorId = s.getId();
+            this.epochCount = s.getMysteryEpochs().size();
+            this.packageCount = s.getPendingPackageCount();
+            this.checkpointCount = s.getCheckpointCount();
+        }
+        this.resultSize = resultSize;
+        commit();
+    }
+
+    /**
+     * Ends the event and commits it with the state of the sensor if the event is enabled
+     * @param s The sensor that was processed, may be null
+     * @param result The localized packages emitted by the stage, may be null
+     */
+    void finish(Sensor s, List<Package> result) {
+        finish(s, result == null ? 0 : result.size());
+    }
+
+    @Name("de.haug.gral.Feed")
+    @Label("Locator Feed")
+    static final class Feed extends LocalizationEvent {
+    }
+
+    @Name("de.haug.gral.AddToEpochs")
+    @Label("Add To Epochs")
+    static final class AddToEpochs extends LocalizationEvent {
+    }
+
+    @Name("de.haug.gral.ClearSensorEpochs")
+    @Label("Clear Sensor Epochs")
+    static final class ClearSensorEpochs extends LocalizationEvent {
+    }
+
+    @Name("de.haug.gral.CalculateEpochPosition")
+    @Label("Calculate Epoch Position")
+    static final class CalculateEpochPosition extends LocalizationEvent {
+        @Label("Epoch Index")
+        int epochIndex;
+    }
+}
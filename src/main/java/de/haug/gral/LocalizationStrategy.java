@@ -0,0 +1,29 @@
+package de.haug.gral;
+
+import java.util.List;
+
+/**
+ * Algorithm that the ingest modes feed packages into. The Locator itself implements GRAL, BaselineStrategy the
+ * primitive baseline and AdaptiveStrategy switches between both depending on the load.
+ */
+public interface LocalizationStrategy {
+    /**
+     * Feed a package into the strategy
+     * @param p The package to feed
+     * @return List of previously fed, localized packages
+     */
+    List<Package> feed(Package p);
+
+    /**
+     * Localizes what can be localized of the remaining packages once the input has ended
+     * @return List of previously fed, localized packages
+     */
+    List<Package> finish();
+
+    /**
+     * Reports the number of packages that wait to be fed. Strategies may trade accuracy for throughput if it grows.
+     * @param backlog The number of waiting packages
+     */
+    default void reportBacklog(int backlog) {
+    }
+}
@@ -6,7 +6,7 @@ import java.util.*;
 /**
  * Class that can annotate packages with estimated positions.
  */
-public class Locator implements Serializable {
+public class Locator implements LocalizationStrategy, Serializable {
 
     /**
      * The signal strength above which a sensor is
@@ -27,10 +27,37 @@ public class Locator implements Serializable {
     private boolean checkpoints;
     private boolean pathRectification;
 
+    /**
+     * Whether feed emits provisional positions for packages that cannot be localized yet
+     */
+    private boolean provisionalEstimates = false;
+
+    /**
+     * Maximum age of a pending package in event time before it is localized with low confidence
+     */
+    private long maxPendingAge = Long.MAX_VALUE;
+
+    /**
+     * Latest timestamp fed into the locator, the event time pending packages expire against
+     */
+    private long watermark = Long.MIN_VALUE;
+
+    /**
+     * Sensors with pending packages by the timestamp of their oldest pending package when they were last fed or swept.
+     * A sensor's key never lies after its oldest pending package, so only the sensors keyed before the deadline
+     * can have expired packages.
+     */
+    private final TreeMap<Long, Set<Sensor>> pendingSensors = new TreeMap<>();
+
+    /**
+     * Key of each sensor id in pendingSensors
+     */
+    private final Map<Long, Long> pendingKeys = new HashMap<>();
+
     /**
      * Mapping the sensor's id's to the objects
      */
-    Map<Long, Sensor> sensors;
+    SensorRegistry sensors;
     TopologyAnalyzer topologyAnalyzer;
 
     /**
@@ -42,7 +69,7 @@ public class Locator implements Serializable {
     public Locator(TopologyAnalyzer t, boolean checkpoints, boolean pathRectification) {
         this.checkpoints = checkpoints;
         this.pathRectification = pathRectification;
-        sensors = new HashMap<>();
+        sensors = new SensorRegistry();
         this.topologyAnalyzer = t;
         if (topologyAnalyzer == null) {
             topologyAnalyzer = new TopologyAnalyzer();
@@ -66,220 +93,410 @@ public class Locator implements Serializable {
         this(null, true, true);
     }
 
-    public void baseLineFeed(Package p) {
-        Sensor.ensureAddedSensor(p.getSensorId(), sensors);
-        Sensor s = sensors.get(p.getSensorId());
+    /**
+     * Enables or disables provisional estimates. If enabled, feed immediately returns each package that cannot be
+     * localized yet with a position extrapolated from the last known position of its sensor. The package is returned
+     * again with its final position and an incremented revision once it is localized.
+     * @param provisionalEstimates Whether to emit provisional positions
+     */
+    public void setProvisionalEstimates(boolean provisionalEstimates) {
+        this.provisionalEstimates = provisionalEstimates;
+    }
 
-        if (s.getMysteryEpochs().size() <= 0) {
-            s.addEpoch(Epoch.EpochType.BASELINE, p);
-        } else {
-            s.getMysteryEpochs().get(0).addPackage(p);
+    /**
+     * Sets the maximum age of pending packages. If the oldest unresolved package of a sensor is older than this age
+     * relative to the latest timestamp fed into the locator, feed localizes it using the last known position of the
+     * sensor and returns it marked as forced. Since all sensors are measured against the same event time, this bounds
+     * output latency and memory also for sensors that have gone silent or have no relay contacts.
+     * @param maxPendingAge The maximum age in timestamp units, Long.MAX_VALUE to disable
+     */
+    public void setMaxPendingAge(long maxPendingAge) {
+        if (maxPendingAge <= 0) throw new IllegalArgumentException("Maximum pending age has to be positive");
+        this.maxPendingAge = maxPendingAge;
+    }
+
+    /**
+     * Enables or disables the compact storage of pending packages. If enabled, packages without contacts are stored
+     * as timestamps inside their epochs and feed returns new Package instances for them once they are localized.
+     * Packages of subclasses of Package are always returned as they were fed.
+     * @param compactPackages Whether to store packages without contacts compactly
+     */
+    public void setCompactPackages(boolean compactPackages) {
+        sensors.setCompactPackages(compactPackages);
+    }
+
+    /**
+     * Raises the signal strength above which a sensor is assumed to be at a relay. Needed when the packages of a
+     * sensor are fed without the packages of other sensors that raised it before.
+     * @param maxSignal The strongest relay signal seen so far
+     */
+    void raiseMaxSignal(float maxSignal) {
+        this.maxSignal = Math.max(this.maxSignal, maxSignal);
+    }
+
+    /**
+     * @return The number of checkpoints from mobile node encounters that are waiting to be used by all sensors
+     */
+    public int getCheckpointCount() {
+        int count = 0;
+        for (Sensor s : sensors.values()) {
+            count += s.getCheckpointCount();
         }
+        return count;
     }
 
+    /**
+     * Feed a package into the baseline algorithm. The packages of a sensor are localized in stages between the
+     * peaks of its relay contacts, each stage as soon as the run of relay contacts with its peak has ended.
+     * @param p The package to feed
+     * @return List of previously fed packages that have been localized by the baseline
+     */
+    public List<Package> baseLineFeed(Package p) {
+        Sensor s = sensors.getOrCreate(p.getSensorId());
+        return s.getBaselineSegmenter().add(p, topologyAnalyzer);
+    }
+
+    /**
+     * Ends the input of a sensor for the baseline algorithm and localizes its remaining packages where possible.
+     * @param sensorId The sensor for which to do it
+     * @return List of previously fed packages that have been localized by the baseline
+     */
     public List<Package> baseLineProcess(Long sensorId) {
         Sensor s = sensors.get(sensorId);
         if (s == null) throw new RuntimeException("Unknown sensor id requested for processing");
 
-        if (s.getMysteryEpochs().size() <= 0) return new LinkedList<>();
+        return s.getBaselineSegmenter().finish(topologyAnalyzer);
+    }
 
-        Epoch baselineEpoch = s.getMysteryEpochs().get(0);
-        List<Package> sameRelayPacks = new LinkedList<>();
-        Long lastId = -1L;
-        List<List<Package>> etapList = new LinkedList<>();
+    /**
+     * Feed a package into the locator. The package will be added to the localization queue of the sensors.
+     * The return value will be an empty list if no new localizations could be made or have several items if
+     * localization using p has become possible.
+     * @param p The package to feed
+     * @return List of previously fed, localized packages
+     */
+    @Override
+    public List<Package> feed(Package p) {
+        LocalizationEvent event = new LocalizationEvent.Feed();
+        event.begin();
+        List<Package> result = feedPackage(p);
+        if (maxPendingAge != Long.MAX_VALUE) {
+            watermark = Math.max(watermark, p.getTimestamp());
+            updatePendingSensor(sensors.get(p.getSensorId()));
+            result.addAll(forceExpiredPackages(watermark - maxPendingAge));
+        }
+        if (provisionalEstimates) {
+            addProvisionalEstimate(p, result);
+        }
+        event.finish(sensors.get(p.getSensorId()), result);
+        return result;
+    }
 
-        for (Package p : baselineEpoch.getPackages()) {
-            if (etapList.size() <= 0) {
-                etapList.add(new LinkedList<>());
-            }
+    /**
+     * GRAL keeps packages that cannot be localized pending, so nothing is left to localize at the end of the input.
+     * @return An empty list
+     */
+    @Override
+    public List<Package> finish() {
+        return new LinkedList<>();
+    }
 
-            WirelessContact wcStrongest = p.getStrongestRelay();
-            if (sameRelayPacks.size() > 0 && (wcStrongest == null || wcStrongest.getNodeId() != sameRelayPacks.get(0).getStrongestRelay().getNodeId())) {
-                float max = Float.NEGATIVE_INFINITY;
-                int maxi = 0;
-                for (int i = 0; i < sameRelayPacks.size(); i++) {
-                    WirelessContact wcStrongestPrev = sameRelayPacks.get(i).getStrongestRelay();
-                    if (wcStrongestPrev.getStrength() >= max) {
-                        max = wcStrongestPrev.getStrength();
-                        maxi = i;
-                    }
-                }
+    /**
+     * Marks the localized packages as final and adds p with a provisional position to them if it is still pending.
+     * @param p The package that has just been fed
+     * @param result The packages that have been localized by feeding p
+     */
+    private void addProvisionalEstimate(Package p, List<Package> result) {
+        boolean localized = false;
+        for (Package r : result) {
+            r.markFinal();
+            if (r == p) localized = true;
+        }
+        if (localized) return;
 
-                lastId = sameRelayPacks.get(0).getStrongestRelay().getNodeId();
-                etapList.get(etapList.size() - 1).addAll(sameRelayPacks.subList(0, maxi + 1));
-                etapList.add(new LinkedList<>(sameRelayPacks.subList(maxi + 1, sameRelayPacks.size())));
-                sameRelayPacks.clear();
-            }
+        Sensor s = sensors.get(p.getSensorId());
+        Position estimate = estimatePosition(s, p);
+        if (estimate != null) {
+            p.setProvisionalPosition(estimate);
+            result.add(p);
+        }
+    }
 
-            if (wcStrongest == null || wcStrongest.getNodeId() == lastId) {
-                // No relay contact
-                // Add to existing etap or create new if none
-                etapList.get(etapList.size() - 1).add(p);
-            } else {
-                sameRelayPacks.add(p);
+    /**
+     * Localizes the pending packages of all sensors that are older than a deadline with low confidence.
+     * Only the sensors whose oldest pending package has passed the deadline are visited.
+     * @param deadline Exclusive upper timestamp boundary of the packages to localize
+     * @return The packages that have been localized, sensor by sensor from the oldest pending package on
+     */
+    private List<Package> forceExpiredPackages(long deadline) {
+        List<Package> result = new LinkedList<>();
+        while (!pendingSensors.isEmpty() && pendingSensors.firstKey() < deadline) {
+            for (Sensor s : pendingSensors.pollFirstEntry().getValue()) {
+                pendingKeys.remove(s.getId());
+                result.addAll(forceExpiredPackages(s, deadline));
+                // The oldest pending package is now at or after the deadline, the loop does not visit s again
+                updatePendingSensor(s);
             }
         }
-        if (sameRelayPacks.size() > 0) {
-            float max = Float.NEGATIVE_INFINITY;
-            int maxi = 0;
-            for (int i = 0; i < sameRelayPacks.size(); i++) {
-                WirelessContact wcStrongestPrev = sameRelayPacks.get(i).getStrongestRelay();
-                if (wcStrongestPrev.getStrength() >= max) {
-                    max = wcStrongestPrev.getStrength();
-                    maxi = i;
-                }
-            }
+        return result;
+    }
 
-            etapList.get(etapList.size() - 1).addAll(sameRelayPacks.subList(0, maxi + 1));
-            etapList.add(new LinkedList<>(sameRelayPacks.subList(maxi + 1, sameRelayPacks.size())));
-            sameRelayPacks.clear();
+    /**
+     * Moves a sensor to the key of its oldest pending package in pendingSensors or removes it if it has none
+     * @param s The sensor for which to do it
+     */
+    private void updatePendingSensor(Sensor s) {
+        long oldest = getOldestPendingTimestamp(s);
+        Long key = pendingKeys.get(s.getId());
+        if (key != null && key == oldest) return;
+
+        if (key != null) {
+            Set<Sensor> keySensors = pendingSensors.get(key);
+            keySensors.remove(s);
+            if (keySensors.isEmpty()) pendingSensors.remove(key);
+            pendingKeys.remove(s.getId());
+        }
+        if (oldest != Long.MAX_VALUE) {
+            pendingSensors.computeIfAbsent(oldest, k -> new LinkedHashSet<>()).add(s);
+            pendingKeys.put(s.getId(), oldest);
         }
+    }
 
-        List<Package> output = new LinkedList<>();
-
-        for (int i = 0; i < etapList.size(); i++){
-            if (i == 0) continue;
-            List<Package> etap = etapList.get(i);
-            if (i == etapList.size() - 1 && etap.size() <= 0) continue;
-            WirelessContact wcStrongestEnd = etap.get(etap.size() - 1).getStrongestRelay();
-            if (wcStrongestEnd == null) continue;
-            WirelessContact wcStrongestStart = etapList.get(i - 1).get(etapList.get(i - 1).size() - 1).getStrongestRelay();
-            if (wcStrongestStart == null)
-                throw new RuntimeException("Etap ends with consecutive etaps should always feature a relay");
-
-            float dist = topologyAnalyzer.getDistance(wcStrongestStart.getNodeId(), wcStrongestEnd.getNodeId());
-            float timeDelta = etap.get(etap.size() - 1).getTimestamp() - etapList.get(i - 1).get(etapList.get(i - 1).size() - 1).getTimestamp();
-
-            for (Package p : etap) {
-                float start = p.getTimestamp() - etapList.get(i - 1).get(etapList.get(i - 1).size() - 1).getTimestamp();
-                p.setPosition(new Position(
-                        topologyAnalyzer.getRelay(wcStrongestStart.getNodeId()),
-                        topologyAnalyzer.getRelay(wcStrongestEnd.getNodeId()),
-                        Math.min(dist * start / timeDelta, dist),
-                        dist));
+    /**
+     * @return The timestamp of the oldest pending package of a sensor or Long.MAX_VALUE if it has none
+     */
+    private static long getOldestPendingTimestamp(Sensor s) {
+        if (s.getMysteryEpochs().size() < 1) return Long.MAX_VALUE;
+        return s.getMysteryEpochs().get(0).getPackages().get(0).getTimestamp();
+    }
+
+    /**
+     * Localizes all pending packages of a sensor that are older than a deadline with low confidence
+     * and removes them from the sensor's epochs.
+     * @param s The sensor for which to do it
+     * @param deadline Exclusive upper timestamp boundary of the packages to localize
+     * @return The packages that have been localized
+     */
+    private List<Package> forceExpiredPackages(Sensor s, long deadline) {
+        if (getOldestPendingTimestamp(s) >= deadline) return new LinkedList<>();
+
+        List<Package> expired = s.expirePackages(deadline);
+        if (expired.size() < 1) return expired;
+
+        for (Package pack : expired) {
+            Position estimate = estimatePosition(s, pack);
+            if (estimate != null) {
+                pack.setPosition(estimate);
             }
-            output.addAll(etap);
+            pack.markForced();
         }
+        s.markLocalized(expired.get(expired.size() - 1));
 
-        s.getMysteryEpochs().clear();
-        return output;
+        return expired;
     }
 
     /**
-     * Feed a package into the locator. The package will be added to the localization queue of the sensors.
-     * The return value will be an empty list if no new localizations could be made or have several items if
-     * localization using p has become possible.
+     * Extrapolates the position of a package from the last known position of its sensor
+     * and the typical speed of the sensor along the topology.
+     * @param s The sensor that recorded p
+     * @param p The package in question
+     * @return The estimated position or null if the sensor has never been localized
+     */
+    Position estimatePosition(Sensor s, Package p) {
+        WirelessContact strongestRelayContact = p.getStrongestRelay();
+        if (strongestRelayContact != null && strongestRelayContact.getStrength() + tolerance >= maxSignal) {
+            return topologyAnalyzer.getRelay(strongestRelayContact.getNodeId()).getExactPosition();
+        }
+
+        Position lastKnownPosition = s.getLastKnownPosition();
+        if (lastKnownPosition == null) return null;
+        if (lastKnownPosition.getStart() == null || lastKnownPosition.getDest() == null) return lastKnownPosition;
+
+        double speed = s.getTypicalSpeed();
+        if (Double.isNaN(speed)) return lastKnownPosition;
+
+        // lastEpochEnd moves with every pending epoch, the last known position belongs to the last purge
+        float travelled = (float)(speed * (p.getTimestamp() - s.getLastPurge()));
+        float positionInBetween = lastKnownPosition.getPositionInBetween() + travelled;
+        return new Position(lastKnownPosition.getStart(), lastKnownPosition.getDest(),
+                Math.max(0, Math.min(positionInBetween, lastKnownPosition.getTotalDistance())),
+                lastKnownPosition.getTotalDistance());
+    }
+
+    /**
+     * Transitions of the feed state machine
+     */
+    private enum Transition {
+        /**
+         * Only keep the package in the epochs
+         */
+        STAY,
+        /**
+         * Add the package to the epochs and localize the sensor's epochs
+         */
+        ADD_AND_CLEAR,
+        /**
+         * Add the package to an approach epoch and localize the sensor's epochs if it stays one
+         */
+        ADD_APPROACH_AND_CLEAR,
+        /**
+         * Localize the sensor's epochs
+         */
+        CLEAR,
+        /**
+         * Localize the sensor's epochs before the latest one
+         */
+        CLEAR_BEFORE_LATEST
+    }
+
+    /**
+     * State index for sensors without a previous non-voyage epoch. All other states are EpochType ordinals
+     */
+    private static final int NO_EPOCH = Epoch.EpochType.values().length;
+
+    /**
+     * Epoch type of a relay contact, indexed by Direction ordinal
+     */
+    private static final Epoch.EpochType[] EPOCH_TYPES = new Epoch.EpochType[Direction.values().length];
+
+    /**
+     * Transition when a relay withdraws, indexed by the state before the latest withdrawal epoch
+     */
+    private static final Transition[] WITHDRAWAL_TRANSITIONS = new Transition[NO_EPOCH + 1];
+
+    /**
+     * Transition when the sensor is in the direct vicinity of a relay, indexed by the state
+     */
+    private static final Transition[] VICINITY_TRANSITIONS = new Transition[NO_EPOCH + 1];
+
+    /**
+     * Transition after the package has been added, indexed by the type of its epoch and the state before that epoch
+     */
+    private static final Transition[][] ADDED_TRANSITIONS = new Transition[NO_EPOCH][NO_EPOCH + 1];
+
+    static {
+        for (Direction d : Direction.values()) {
+            EPOCH_TYPES[d.ordinal()] = Epoch.typeFromDirection(d);
+        }
+
+        Arrays.fill(WITHDRAWAL_TRANSITIONS, Transition.STAY);
+        WITHDRAWAL_TRANSITIONS[Epoch.EpochType.RELAY_APPROACH.ordinal()] = Transition.ADD_AND_CLEAR;
+
+        Arrays.fill(VICINITY_TRANSITIONS, Transition.STAY);
+        VICINITY_TRANSITIONS[Epoch.EpochType.RELAY_APPROACH.ordinal()] = Transition.ADD_AND_CLEAR;
+        VICINITY_TRANSITIONS[NO_EPOCH] = Transition.ADD_APPROACH_AND_CLEAR;
+
+        for (Transition[] row : ADDED_TRANSITIONS) {
+            Arrays.fill(row, Transition.STAY);
+        }
+        ADDED_TRANSITIONS[Epoch.EpochType.RELAY_WITHDRAWAL.ordinal()][Epoch.EpochType.RELAY_APPROACH.ordinal()] =
+                Transition.CLEAR;
+        for (Epoch.EpochType t : Epoch.EpochType.values()) {
+            ADDED_TRANSITIONS[Epoch.EpochType.RELAY_APPROACH.ordinal()][t.ordinal()] = Transition.CLEAR_BEFORE_LATEST;
+        }
+    }
+
+    /**
+     * Performs the actual work of feed. The sensor's state is the type of its last non-voyage epoch, the
+     * transitions for it are looked up in the transition tables.
      * @param p The package to feed
      * @return List of previously fed, localized packages
      */
-    public List<Package> feed(Package p) {
-        // Add sensor to dict if new
-        Sensor.ensureAddedSensor(p.getSensorId(), sensors);
-        Sensor s = sensors.get(p.getSensorId());
+    private List<Package> feedPackage(Package p) {
+        // Add sensor to dict if new. Contacted sensors are registered once they send packages themselves
+        Sensor s = sensors.getOrCreate(p.getSensorId());
 
-        // Add wireless neighbourhood to dictionaries and set maxSignal
+        // Set maxSignal and get a list of the relay contacts
+        List<WirelessContact> detectedRelays = new ArrayList<>(p.contacts.size());
         for (WirelessContact w : p.contacts) {
-            if (Node.isSensor(w.getNodeId())) {
-                if (!sensors.containsKey(w.getNodeId())) {
-                    sensors.put(w.getNodeId(), new Sensor(w.getNodeId()));
-                }
-            } else {
+            if (!Node.isSensor(w.getNodeId())) {
                 maxSignal = Math.max(w.getStrength(), maxSignal);
+                detectedRelays.add(w);
             }
         }
 
-        // Get a list of the relay contacts
-        LinkedList<WirelessContact> detectedRelays = new LinkedList<>(p.contacts);
-        detectedRelays.removeIf(c -> Node.isSensor(c.getNodeId()));
-
-        if (detectedRelays.size() > 0) {
-            WirelessContact strongestRelayContact = WirelessContact.getStrongestSignal(detectedRelays);
-
-            // For every contacted relay, determine heading
-            for (WirelessContact relayContact : detectedRelays) {
-                Relay relay = topologyAnalyzer.getRelay(relayContact.getNodeId());
-                WirelessContact lastContact = s.getLastPackage() == null ? null : s.getLastPackage().getContactToNode(relay.getId());
-
-                if (lastContact == null) {
-                    // If the last contact is null and there are packages (i.e. not seen before)
-                    // the sensor approaches.
-                    // If there are none the sensor has had a purge due to
-                    // passing under the relay and thus withdraws.
-                    if (s.getLastPackage() == null) {
-                        relayContact.setDirection(Direction.WITHDRAWAL);
-                    } else {
-                        relayContact.setDirection(Direction.APPROACH);
-                    }
-                } else if (lastContact.getStrength() < relayContact.getStrength()) {
-                    relayContact.setDirection(Direction.APPROACH);
-                } else if (lastContact.getStrength() >= relayContact.getStrength()) {
-                    relayContact.setDirection(Direction.WITHDRAWAL);
-                    try {
-                        int index = s.getMysteryEpochs().size();
-
-                        // Find latest non-same epoch
-                        if (s.getLatestEpoch() != null) {
-                            if (s.getLatestEpoch().getType() == Epoch.EpochType.RELAY_WITHDRAWAL) {
-                                index--;
-                            }
-                        }
-
-                        if (Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), index,
-                                true).getType() == Epoch.EpochType.RELAY_APPROACH) {
-                            addToEpochs(s, p, Epoch.EpochType.RELAY_WITHDRAWAL);
-                            return clearSensorEpochs(s);
-                        }
-                    } catch (NoSuchElementException e) {
-                        // continue
-                    }
+        if (detectedRelays.isEmpty()) {
+            addToEpochs(s, p, Epoch.EpochType.VOYAGE);
+            return new LinkedList<>();
+        }
 
+        List<Epoch> epochs = s.getMysteryEpochs();
+        Package lastPackage = s.getLastPackage();
+        WirelessContact strongestRelayContact = WirelessContact.getStrongestSignal(detectedRelays);
+
+        // The state is looked up once per package. During a withdrawal it is the one before the latest
+        // withdrawal epoch, which is the same as the current state unless the latest epoch is a withdrawal.
+        Epoch latest = s.getLatestEpoch();
+        int withdrawalIndex = latest != null && latest.getType() == Epoch.EpochType.RELAY_WITHDRAWAL
+                ? epochs.size() - 1 : epochs.size();
+        int withdrawalState = -1;
+
+        // For every contacted relay, determine heading
+        for (WirelessContact relayContact : detectedRelays) {
+            WirelessContact lastContact = lastPackage == null ? null : lastPackage.getContactToNode(relayContact.getNodeId());
+
+            if (lastContact == null) {
+                // If the last contact is null and there are packages (i.e. not seen before)
+                // the sensor approaches.
+                // If there are none the sensor has had a purge due to
+                // passing under the relay and thus withdraws.
+                relayContact.setDirection(lastPackage == null ? Direction.WITHDRAWAL : Direction.APPROACH);
+            } else if (lastContact.getStrength() < relayContact.getStrength()) {
+                relayContact.setDirection(Direction.APPROACH);
+            } else if (lastContact.getStrength() >= relayContact.getStrength()) {
+                relayContact.setDirection(Direction.WITHDRAWAL);
+
+                if (withdrawalState < 0) withdrawalState = stateBefore(epochs, withdrawalIndex);
+                if (WITHDRAWAL_TRANSITIONS[withdrawalState] == Transition.ADD_AND_CLEAR) {
+                    addToEpochs(s, p, Epoch.EpochType.RELAY_WITHDRAWAL);
+                    return clearSensorEpochs(s);
                 }
             }
+        }
 
-            // Clear sensor history if a location gets known
-            // because it is in the direct vicinity of a relay
-            if (strongestRelayContact.getStrength() + tolerance >= maxSignal) {
-                //p.setPosition(new Position(strongestRelay, null, 0, 0));
-                try {
-                    Epoch lastMeaningful = Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(),
-                            s.getMysteryEpochs().size(), true);
-                    if (lastMeaningful.getType() == Epoch.EpochType.RELAY_APPROACH) {
-                        addToEpochs(s, p, Epoch.typeFromDirection(strongestRelayContact.getDirection()));
-                        return clearSensorEpochs(s);
-                    }
-                } catch (NoSuchElementException e) {
+        Epoch.EpochType strongestType = EPOCH_TYPES[strongestRelayContact.getDirection().ordinal()];
+
+        // Clear sensor history if a location gets known
+        // because it is in the direct vicinity of a relay
+        if (strongestRelayContact.getStrength() + tolerance >= maxSignal) {
+            int state = withdrawalState >= 0 && withdrawalIndex == epochs.size()
+                    ? withdrawalState : stateBefore(epochs, epochs.size());
+            switch (VICINITY_TRANSITIONS[state]) {
+                case ADD_AND_CLEAR:
+                    addToEpochs(s, p, strongestType);
+                    return clearSensorEpochs(s);
+                case ADD_APPROACH_AND_CLEAR:
                     if (addToEpochs(s, p, Epoch.EpochType.RELAY_APPROACH) == Epoch.EpochType.RELAY_APPROACH) {
                         return clearSensorEpochs(s);
                     }
-                }
-
+                    break;
+                default:
+                    break;
             }
+        }
 
-            Epoch.EpochType type = addToEpochs(s, p, Epoch.typeFromDirection(strongestRelayContact.getDirection()));
-            if (type == Epoch.EpochType.RELAY_WITHDRAWAL) {
-                try {
-                    if (Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), s.getMysteryEpochs().size() - 1,
-                            true).getType() == Epoch.EpochType.RELAY_APPROACH) {
-                        return clearSensorEpochs(s);
-                    }
-                } catch (NoSuchElementException e) {
-                    // That's fine
-                }
-            } else if (type == Epoch.EpochType.RELAY_APPROACH) {
-                try {
-                    Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), s.getMysteryEpochs().size() - 1,
-                            true);
-                    return clearSensorEpochs(s, s.getMysteryEpochs().size() - 1);
-                } catch (NoSuchElementException e) {
-                    // Do nothing
-                }
-            }
+        Epoch.EpochType type = addToEpochs(s, p, strongestType);
+        if (type == Epoch.EpochType.VOYAGE) return new LinkedList<>();
 
-        } else {
-            addToEpochs(s, p, Epoch.EpochType.VOYAGE);
+        switch (ADDED_TRANSITIONS[type.ordinal()][stateBefore(epochs, epochs.size() - 1)]) {
+            case CLEAR:
+                return clearSensorEpochs(s);
+            case CLEAR_BEFORE_LATEST:
+                return clearSensorEpochs(s, epochs.size() - 1);
+            default:
+                return new LinkedList<>();
         }
+    }
 
-        return new LinkedList<>();
+    /**
+     * Determines the state of the feed state machine before an epoch
+     * @param epochs The sensor's epochs
+     * @param index Index of the epoch, may be epochs.size() for the state after all epochs
+     * @return The ordinal of the type of the last non-voyage epoch before index or NO_EPOCH if there is none
+     */
+    private static int stateBefore(List<Epoch> epochs, int index) {
+        int i = Epoch.findLastNonVoyageEpoch(epochs, index, true);
+        return i < 0 ? NO_EPOCH : epochs.get(i).getType().ordinal();
     }
 
     /**
@@ -288,8 +505,24 @@ public class Locator implements Serializable {
      * @param s The sensor that recorded p
      * @param p The package in question
      * @param type The required EpochType
+     * @return The type of the epoch p has been added to
      */
     Epoch.EpochType addToEpochs(Sensor s, Package p, Epoch.EpochType type) {
+        LocalizationEvent event = new LocalizationEvent.AddToEpochs();
+        event.begin();
+        Epoch.EpochType result = addToEpochsInternal(s, p, type);
+        event.finish(s, 0);
+        return result;
+    }
+
+    /**
+     * Performs the actual work of addToEpochs.
+     * @param s The sensor that recorded p
+     * @param p The package in question
+     * @param type The required EpochType
+     * @return The type of the epoch p has been added to
+     */
+    private Epoch.EpochType addToEpochsInternal(Sensor s, Package p, Epoch.EpochType type) {
         Epoch e = s.getLatestEpoch();
         if (e == null) {
             s.addEpoch(type, p);
@@ -299,14 +532,10 @@ public class Locator implements Serializable {
 
                 WirelessContact strongest = p.getStrongestRelay();
                 Relay prevStrongestRelay = null;
-                int nonVoyageId;
-                try {
-                    Epoch nonVoyage = Epoch.getLastNonVoyageEpoch(epochs, epochs.size(), true);
-                    prevStrongestRelay = topologyAnalyzer.getRelay(nonVoyage.getRelayContact().getNodeId());
-                    nonVoyageId = epochs.indexOf(nonVoyage);
-                } catch (NoSuchElementException err) {
-                    nonVoyageId = -1;
-
+                int nonVoyageId = Epoch.findLastNonVoyageEpoch(epochs, epochs.size(), true);
+                if (nonVoyageId >= 0) {
+                    prevStrongestRelay = topologyAnalyzer.getRelay(epochs.get(nonVoyageId).getRelayContact().getNodeId());
+                } else {
                     if (s.getLastKnownPosition() != null) {
                         Position pos = s.getLastKnownPosition();
                         if (pos.getDest() instanceof Relay) {
@@ -355,13 +584,10 @@ public class Locator implements Serializable {
                     }
                 }
                 if (timestampSmaller + 1 <= e.getPackages().size()) {
-                    List<Package> sublist = e.getPackages().subList(timestampSmaller + 1, e.getPackages().size());
-                    List<Package> newPackages = new LinkedList<>(sublist);
+                    List<Package> newPackages = e.removePackagesAfter(timestampSmaller);
                     newPackages.add(p);
-                    sublist.clear();
 
                     e.endPosition = checkpoint;
-                    e.renewStrongestContactInfo();
                     s.addEpoch(type, newPackages.get(0));
                     newPackages.remove(0);
 
@@ -391,7 +617,12 @@ public class Locator implements Serializable {
      * @return Null if the superior function may continue execution, an empty List of packages if
      * localization remains impossible and a List of packages if localization is complete
      */    private List<Package> calculateEpochPosition(Sensor s, int i) {
-        return calculateEpochPosition(s, i, false);
+        LocalizationEvent.CalculateEpochPosition event = new LocalizationEvent.CalculateEpochPosition();
+        event.begin();
+        event.epochIndex = i;
+        List<Package> result = calculateEpochPosition(s, i, false);
+        event.finish(s, result);
+        return result;
     }
 
     /**
@@ -448,11 +679,8 @@ public class Locator implements Serializable {
                     // If the next relay is known and no previous contacts are saved,
                     // set incomplete position data since the origin will remain unknown
                     // no matter what
-                    for (Package pack : epoch.getPackages()) {
-                        pack.setPosition(new Position(null, topologyAnalyzer.getRelay(
-                                strongestFutureContact.getId()), 0,
-                                Float.POSITIVE_INFINITY));
-                    }
+                    epoch.setPackagePositions(new Position(null, topologyAnalyzer.getRelay(
+                            strongestFutureContact.getId()), 0, Float.POSITIVE_INFINITY));
                     return null;
                 } else {
                     // Data not sufficient, sensor has to have contacted at least one relay
@@ -542,9 +770,7 @@ public class Locator implements Serializable {
                     Position position = new Position(strongestContact, nextRelay, 0,
                             topologyAnalyzer.getDistance(strongestContact.getId(), nextRelay.getId()));
                     epoch.endPosition = position;
-                    for (Package pack : epoch.getPackages()) {
-                        pack.setPosition(position);
-                    }
+                    epoch.setPackagePositions(position);
                     return null;
                 } else {
                     return new LinkedList<>();
@@ -603,6 +829,20 @@ public class Locator implements Serializable {
      * @return Position-assigned packages from s
      */
     List<Package> clearSensorEpochs(Sensor s, int maxIndex) {
+        LocalizationEvent event = new LocalizationEvent.ClearSensorEpochs();
+        event.begin();
+        List<Package> result = clearSensorEpochsInternal(s, maxIndex);
+        event.finish(s, result);
+        return result;
+    }
+
+    /**
+     * Performs the actual work of clearSensorEpochs.
+     * @param s The sensor for which to do it
+     * @param maxIndex Exclusive upper boundary for the epochs to be processed
+     * @return Position-assigned packages from s
+     */
+    private List<Package> clearSensorEpochsInternal(Sensor s, int maxIndex) {
         List<Epoch> epochs = s.getMysteryEpochs();
 
         // Merge start epoch with withdrawal if applicable
@@ -615,7 +855,7 @@ public class Locator implements Serializable {
                 if (secondEpoch.getType().equals(Epoch.EpochType.VOYAGE)) {
                     epoch.setType(Epoch.EpochType.RELAY_WITHDRAWAL);
                 } else if (secondEpoch.hasContactToNode(topologyAnalyzer.getRelay(relayId))) {
-                    secondEpoch.packages.add(0, epoch.getPackages().get(0));
+                    secondEpoch.addFirstPackage(epoch.getPackages().get(0));
                     epochs.remove(0);
                 }
             }
@@ -630,44 +870,50 @@ public class Locator implements Serializable {
 
             // Check if epochs have to be split and calculations redone because of contact to other sensors.
             if (!checkpoints && !pathRectification) continue;
-            for (long k : epoch.getStrongestContact().keySet()) {
+            // Sensors are visited in the order they were first encountered, so earlier contacts split first
+            for (long k : epoch.getContactedSensorIds()) {
                 Sensor contactedSensor = sensors.get(k);
-                Package strongPackage = epoch.getStrongestContact().get(k);
+                Package strongPackage = epoch.getStrongestContact(k);
+                // Without packages of its own the contacted sensor has no relay history to reason about.
+                // The strongest package may also have been split off by an earlier contact
+                if (contactedSensor == null || strongPackage == null) continue;
 
+                Position strongPosition = epoch.getPackagePosition(strongPackage);
                 if (pathRectification && epoch.getType().equals(Epoch.EpochType.VOYAGE)) {
                     // Check for each contact if earliest possible confluence is greater than the calculated position
                     Long lastRelayId = contactedSensor.getLastRelayContactId(strongPackage.getTimestamp()
                             + TIME_TOLERANCE);
-                    Node currentStart = strongPackage.position.getStart();
+                    Node currentStart = strongPosition.getStart();
                     if (lastRelayId != null && currentStart != null) {
                         Relay lastRelay = topologyAnalyzer.getRelay(lastRelayId);
 
-                        Node earliestConfluence = topologyAnalyzer.getEarliestSharedNode(
-                                currentStart, lastRelay, strongPackage.position.getDest());
+                        float minDistance = topologyAnalyzer.getEarliestConfluence(
+                                currentStart, lastRelay, strongPosition.getDest()).distance;
 
-                        float minDistance = topologyAnalyzer.getDistance(
-                                strongPackage.position.getStart().getId(), earliestConfluence.getId());
-
-                        if (strongPackage.getPosition().getPositionInBetween() < minDistance) {
+                        if (strongPosition.getPositionInBetween() < minDistance) {
                             // Split epoch and recalculate (otherwise we'd end up with an impossible contact)
                             Epoch newEpoch = epoch.split(strongPackage, topologyAnalyzer.getGraphEdgePosition(
-                                    new Position(strongPackage.position.getStart(),
-                                    strongPackage.position.getDest(), minDistance,
-                                    strongPackage.position.getTotalDistance())));
+                                    new Position(strongPosition.getStart(),
+                                    strongPosition.getDest(), minDistance,
+                                    strongPosition.getTotalDistance())));
                             if (newEpoch != null) {
                                 s.mysteryEpochs.add(i + 1, newEpoch);
                                 maxIndex++;
                             }
 
-                            calculateEpochPosition(s, i);
+                            // Nothing is split off if strongPackage is the latest package of the epoch
+                            if (!epoch.hasCurrentPositions()) {
+                                calculateEpochPosition(s, i);
+                                strongPosition = epoch.getPackagePosition(strongPackage);
+                            }
                         }
                     }
                 }
 
-                if (checkpoints && strongPackage.getPosition().getStart() != null
-                        && strongPackage.getPosition().getDest() != null) {
+                if (checkpoints && strongPosition.getStart() != null
+                        && strongPosition.getDest() != null) {
                     // Do this once final positions are determined
-                    Position pos = topologyAnalyzer.getGraphEdgePosition(strongPackage.getPosition());
+                    Position pos = topologyAnalyzer.getGraphEdgePosition(strongPosition);
                     Long lastId = contactedSensor.getLastRelayContactId();
                     if (lastId != null && topologyAnalyzer.contains(pos.getStart(),
                             pos.getDest(), new Position(topologyAnalyzer.getRelay(lastId), pos.getDest(), 0, Float.POSITIVE_INFINITY))) {
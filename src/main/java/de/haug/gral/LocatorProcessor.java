@@ -0,0 +1,207 @@
+package de.haug.gral;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive stage that feeds the packages of an upstream publisher into a Locator or another localization strategy
+ * and publishes the localized packages to a single downstream subscriber.
+ * Packages are only requested from upstream while the downstream subscriber has unfulfilled demand and all
+ * localized packages have been delivered, so a slow subscriber throttles the intake instead of letting localized
+ * packages pile up. Since one package can localize many pending ones, at most the results of the packages
+ * requested in one batch are buffered. Once upstream completes, the packages the strategy localizes at the end of the
+ * input are published as well.
+ */
+public class LocatorProcessor implements Flow.Processor<Package, Package> {
+    /**
+     * Default number of packages requested from upstream at once
+     */
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    private final LocalizationStrategy strategy;
+    private final int batchSize;
+
+    /**
+     * Localized packages waiting for downstream demand
+     */
+    private final Queue<Package> buffer = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Unfulfilled downstream demand
+     */
+    private final AtomicLong demand = new AtomicLong();
+
+    /**
+     * Packages requested from upstream that have not arrived yet
+     */
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Number of pending drain calls, only the caller that raises it from zero drains
+     */
+    private final AtomicInteger drainCalls = new AtomicInteger();
+
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super Package> downstream;
+    private volatile boolean done = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable error;
+
+    /**
+     * Constructs a new processor requesting DEFAULT_BATCH_SIZE packages at once
+     * @param strategy The locator or strategy to feed
+     */
+    public LocatorProcessor(LocalizationStrategy strategy) {
+        this(strategy, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a new processor
+     * @param strategy The locator or strategy to feed
+     * @param batchSize Number of packages requested from upstream at once
+     */
+    public LocatorProcessor(LocalizationStrategy strategy, int batchSize) {
+        if (strategy == null) throw new NullPointerException("The strategy cannot be null");
+        if (batchSize < 1) throw new IllegalArgumentException("The batch size has to be positive");
+        this.strategy = strategy;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Package> subscriber) {
+        if (subscriber == null) throw new NullPointerException("The subscriber cannot be null");
+
+        synchronized (this) {
+            if (downstream != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("The processor only supports a single subscriber"));
+                return;
+            }
+            downstream = subscriber;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    Flow.Subscription s = upstream;
+                    if (s != null) s.cancel();
+                    onError(new IllegalArgumentException("The number of requested packages has to be positive"));
+                    return;
+                }
+                demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                Flow.Subscription s = upstream;
+                if (s != null) s.cancel();
+                buffer.clear();
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        if (cancelled) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(Package p) {
+        outstanding.decrementAndGet();
+        if (done || cancelled) return;
+
+        try {
+            buffer.addAll(strategy.feed(p));
+        } catch (RuntimeException e) {
+            upstream.cancel();
+            onError(e);
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (done) return;
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        if (done) return;
+        try {
+            buffer.addAll(strategy.finish());
+        } catch (RuntimeException e) {
+            onError(e);
+            return;
+        }
+        done = true;
+        drain();
+    }
+
+    /**
+     * Delivers buffered packages according to the downstream demand and requests the next batch from upstream
+     * once the buffer has been emptied. Signals that arrive while a thread is draining are handled by that thread.
+     */
+    private void drain() {
+        if (drainCalls.getAndIncrement() != 0) return;
+
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super Package> subscriber = downstream;
+            if (subscriber != null && !cancelled) {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && !cancelled) {
+                    Package p = buffer.poll();
+                    if (p == null) break;
+                    subscriber.onNext(p);
+                    emitted++;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE) demand.addAndGet(-emitted);
+
+                if (done && !cancelled && (error != null || buffer.isEmpty())) {
+                    cancelled = true;
+                    buffer.clear();
+                    if (error != null) {
+                        subscriber.onError(error);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                } else if (!done && !cancelled && upstream != null && buffer.isEmpty() && demand.get() > 0
+                        && outstanding.compareAndSet(0, batchSize)) {
+                    upstream.request(batchSize);
+                }
+            }
+            missed = drainCalls.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -1,7 +1,36 @@
 package de.haug.gral;
 
-import java.util.List;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class LocatorTest {
 
@@ -415,6 +444,664 @@ class LocatorTest {
         assertEquals(Float.POSITIVE_INFINITY, resultS3.get(0).getPosition().getTotalDistance());
     }
 
+    @org.junit.jupiter.api.Test
+    void feedProvisionalTest() throws Exception {
+        Locator locator = new Locator();
+        locator.setProvisionalEstimates(true);
+
+        List<Package> first = locator.feed(p1);
+        assertEquals(1, first.size());
+        assertTrue(p1.isProvisional());
+        assertEquals(0, p1.getRevision());
+        assertEquals(1001L, p1.getPosition().getStart().getId());
+
+        assertEquals(0, locator.feed(p2).size());
+        assertEquals(0, locator.feed(p3).size());
+        assertEquals(0, locator.feed(p4).size());
+        assertEquals(0, locator.feed(p5).size());
+        assertEquals(0, locator.feed(p6).size());
+
+        List<Package> cleared = locator.feed(p7);
+        assertTrue(cleared.contains(p1));
+        assertFalse(p1.isProvisional());
+        assertEquals(1, p1.getRevision());
+        assertEquals(p7, cleared.get(cleared.size() - 1));
+        assertTrue(p7.isProvisional());
+
+        assertEquals(1, locator.feed(p8).size());
+        assertTrue(p8.isProvisional());
+
+        List<Package> result = locator.feed(p9);
+        assertTrue(result.contains(p8));
+        assertFalse(p8.isProvisional());
+        assertEquals(1, p8.getRevision());
+        assertEquals(0, p9.getRevision());
+    }
+
+    @org.junit.jupiter.api.Test
+    void estimatePositionPendingEpochsTest() throws Exception {
+        Locator locator = new Locator();
+        Sensor s = locator.sensors.getOrCreate(2);
+        TopologyAnalyzer t = locator.topologyAnalyzer;
+
+        // Localize a voyage of 10 units in 10 ticks, the sensor is at 10 of 100 at timestamp 20
+        s.addEpoch(Epoch.EpochType.VOYAGE, new Package(2, 10));
+        s.getLatestEpoch().addPackage(new Package(2, 20));
+        s.getLatestEpoch().setPackagePositions(10, new Position(t.getRelay(1001), t.getRelay(1002), 0, 100));
+        s.mergeAndClearEpochs(1);
+        assertEquals(20, s.getLastPurge());
+
+        // A pending voyage epoch and a relay epoch move lastEpochEnd behind the pending packages
+        Package c = new Package(2, 25);
+        Package d = new Package(2, 30);
+        s.addEpoch(Epoch.EpochType.VOYAGE, c);
+        s.getLatestEpoch().addPackage(d);
+        s.addEpoch(Epoch.EpochType.RELAY_APPROACH, new Package(2, 40, wirelessContact1_1));
+        s.addEpoch(Epoch.EpochType.VOYAGE, new Package(2, 45));
+        assertEquals(40, s.lastEpochEnd);
+
+        assertEquals(15, locator.estimatePosition(s, c).getPositionInBetween(), 1e-4);
+        assertEquals(20, locator.estimatePosition(s, d).getPositionInBetween(), 1e-4);
+        assertEquals(0, locator.estimatePosition(s, new Package(2, 5)).getPositionInBetween(), 1e-4);
+        assertEquals(100, locator.estimatePosition(s, new Package(2, 500)).getPositionInBetween(), 1e-4);
+    }
+
+    @org.junit.jupiter.api.Test
+    void feedMaxPendingAgeTest() throws Exception {
+        Locator locator = new Locator();
+        locator.setMaxPendingAge(5);
+
+        assertEquals(0, locator.feed(p1).size());
+        assertEquals(0, locator.feed(p2).size());
+        assertEquals(0, locator.feed(p3).size());
+        assertEquals(0, locator.feed(p4).size());
+
+        List<Package> result = locator.feed(p5);
+        assertEquals(1, result.size());
+        assertEquals(p1, result.get(0));
+        assertTrue(p1.isForced());
+
+        assertEquals(0, locator.feed(p6).size());
+
+        result = locator.feed(new Package(2, 9));
+        assertEquals(1, result.size());
+        assertEquals(p2, result.get(0));
+        assertTrue(p2.isForced());
+        assertEquals(1001L, p2.getPosition().getStart().getId());
+        assertEquals(5, locator.sensors.get(2L).getPendingPackageCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void feedMaxPendingAgeOrderTest() throws Exception {
+        Locator locator = new Locator();
+        locator.setMaxPendingAge(5);
+
+        Package a = new Package(7, 3), b = new Package(5, 1), c = new Package(6, 2);
+        assertEquals(0, locator.feed(a).size());
+        assertEquals(0, locator.feed(b).size());
+        assertEquals(0, locator.feed(c).size());
+
+        // Only sensor 5 is due
+        assertEquals(Collections.singletonList(b), locator.feed(new Package(8, 7)));
+        assertEquals(1, locator.sensors.get(6L).getPendingPackageCount());
+
+        // Expired sensors are visited by their oldest pending package, not in the order they were added
+        assertEquals(Arrays.asList(c, a), locator.feed(new Package(8, 9)));
+        assertEquals(0, locator.sensors.get(7L).getPendingPackageCount());
+        assertEquals(2, locator.sensors.get(8L).getPendingPackageCount());
+        assertEquals(0, locator.feed(new Package(5, 10)).size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void feedMaxPendingAgeSilentSensorTest() throws Exception {
+        Locator locator = new Locator();
+        locator.setMaxPendingAge(5);
+
+        assertEquals(0, locator.feed(p1).size());
+        assertEquals(0, locator.feed(p2).size());
+        assertEquals(0, locator.feed(p3).size());
+
+        // Sensor 2 goes silent while sensor 4 advances the event time
+        assertEquals(0, locator.feed(new Package(4, 5)).size());
+        List<Package> result = locator.feed(new Package(4, 10));
+        assertEquals(Arrays.asList(p1, p2, p3), result);
+        for (Package p : result) {
+            assertTrue(p.isForced());
+        }
+        assertEquals(1001L, p1.getPosition().getStart().getId());
+        assertEquals(0, locator.sensors.get(2L).getPendingPackageCount());
+
+        result = locator.feed(new Package(4, 11));
+        assertEquals(1, result.size());
+        assertEquals(5, result.get(0).getTimestamp());
+        assertEquals(0, locator.feed(new Package(4, 15)).size());
+        result = locator.feed(new Package(4, 16));
+        assertEquals(1, result.size());
+        assertEquals(10, result.get(0).getTimestamp());
+        assertEquals(3, locator.sensors.get(4L).getPendingPackageCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void splitStrongestContactTest() throws Exception {
+        Package a = new Package(2, 8, wirelessContactS3_0);
+        Package b = new Package(2, 10, wirelessContactS3_1);
+        Package c = new Package(2, 12, wirelessContactS3_0);
+        Epoch e = new Epoch(Epoch.EpochType.VOYAGE, a);
+        e.addPackage(b);
+        e.addPackage(c);
+        assertEquals(b, e.getStrongestContact(3));
+
+        Epoch rest = e.split(a, null);
+        assertEquals(2, rest.getPackages().size());
+        assertEquals(a, e.getStrongestContact(3));
+        assertTrue(e.hasContactToNode(new Sensor(3)));
+        assertTrue(rest.hasContactToNode(new Sensor(3)));
+
+        e.addPackage(new Package(2, 9));
+        e.removePackagesBefore(9);
+        assertNull(e.getStrongestContact(3));
+        assertEquals(0, e.getContactedSensorIds().length);
+        assertFalse(e.hasContactToNode(new Sensor(3)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void contactCountsTest() throws Exception {
+        Sensor s2 = new Sensor(2), s3 = new Sensor(3);
+        Relay relay = new Relay(1001);
+        Package a = new Package(1, 8, wirelessContactS3_0);
+        Package b = new Package(1, 10, new HashSet<>(Arrays.asList(wirelessContactS3_1, wirelessContact1_1)));
+        Epoch e = new Epoch(Epoch.EpochType.VOYAGE, a);
+        e.addPackage(b);
+        e.addPackage(new Package(1, 12, wirelessContactS2_0));
+        e.addPackage(new Package(1, 14, wirelessContactS3_0));
+
+        Epoch rest = e.split(b, null);
+        assertTrue(e.hasContactToNode(s3));
+        assertTrue(e.hasContactToNode(relay));
+        assertFalse(e.hasContactToNode(s2));
+        assertTrue(rest.hasContactToNode(s2));
+        assertTrue(rest.hasContactToNode(s3));
+        assertFalse(rest.hasContactToNode(relay));
+
+        rest.removePackagesBefore(14);
+        assertFalse(rest.hasContactToNode(s2));
+        assertTrue(rest.hasContactToNode(s3));
+        // The latest package is never removed
+        rest.removePackagesBefore(100);
+        assertTrue(rest.hasContactToNode(s3));
+
+        // a still has a contact to 3 after b is gone
+        e.removePackagesAfter(0);
+        assertTrue(e.hasContactToNode(s3));
+        assertFalse(e.hasContactToNode(relay));
+
+        e.addPackage(new Package(1, 16, wirelessContactS2_1));
+        e.removePackagesBefore(16);
+        assertFalse(e.hasContactToNode(s3));
+        assertTrue(e.hasContactToNode(s2));
+
+        e.addFirstPackage(new Package(1, 6, wirelessContact1_0));
+        assertTrue(e.hasContactToNode(relay));
+    }
+
+    @org.junit.jupiter.api.Test
+    void currentPositionsTest() throws Exception {
+        Relay r1 = new Relay(1001), r2 = new Relay(1002);
+        Package a = new Package(1, 8, wirelessContactS3_0);
+        Package b = new Package(1, 10, wirelessContactS3_1);
+        Epoch e = new Epoch(Epoch.EpochType.VOYAGE, a);
+        e.addPackage(b);
+        assertFalse(e.hasCurrentPositions());
+
+        // The first calculation determines the end position, which the next one starts from
+        e.setPackagePositions(20, new Position(r1, r2, 0, 50));
+        assertFalse(e.hasCurrentPositions());
+        e.setPackagePositions(20, new Position(r1, r2, 0, 50));
+        assertTrue(e.hasCurrentPositions());
+
+        // Splitting at the latest package leaves the epoch untouched
+        Position end = e.endPosition;
+        assertNull(e.split(b, new Position(r1, r2, 30, 50)));
+        assertTrue(e.hasCurrentPositions());
+        assertSame(end, e.endPosition);
+
+        e.addPackage(new Package(1, 12, wirelessContactS3_0));
+        assertFalse(e.hasCurrentPositions());
+        e.setPackagePositions(new Position(r1, r2, 0, 50));
+        assertTrue(e.hasCurrentPositions());
+
+        assertNotNull(e.split(b, new Position(r1, r2, 30, 50)));
+        assertFalse(e.hasCurrentPositions());
+    }
+
+    @org.junit.jupiter.api.Test
+    void contactedSensorOrderTest() throws Exception {
+        // Hash order would be 2, 3, 17, 33
+        Epoch e = new Epoch(Epoch.EpochType.VOYAGE, new Package(1, 8, new WirelessContact(33, .7f)));
+        e.addPackage(new Package(1, 9, new WirelessContact(17, .3f)));
+        e.addPackage(new Package(1, 10, new WirelessContact(3, .5f)));
+        Package strongest = new Package(1, 11, new WirelessContact(17, .9f));
+        e.addPackage(strongest);
+        Package a = new Package(1, 12, new WirelessContact(2, .4f));
+        Package b = new Package(1, 13, new WirelessContact(17, .5f));
+        e.addPackage(a);
+        e.addPackage(b);
+        assertArrayEquals(new long[] {33, 17, 3, 2}, e.getContactedSensorIds());
+        assertEquals(strongest, e.getStrongestContact(17));
+
+        // 17 is looked up again and keeps its place ahead of 2
+        e.removePackagesBefore(12);
+        assertArrayEquals(new long[] {17, 2}, e.getContactedSensorIds());
+        assertEquals(b, e.getStrongestContact(17));
+        assertEquals(a, e.getStrongestContact(2));
+        assertNull(e.getStrongestContact(3));
+    }
+
+    @org.junit.jupiter.api.Test
+    void checkpointBoundariesTest() throws Exception {
+        Sensor s = new Sensor(5);
+        Position position = new Position(new Relay(1001), new Relay(1002), 10, 100);
+        for (long t = 10; t <= 50; t += 10) {
+            s.addRendezVous(new RendezVous(position, s, t));
+        }
+        assertEquals(5, s.getCheckpointCount());
+
+        // Both boundaries are exclusive, a checkpoint at start is dropped nevertheless
+        assertNull(s.getCheckpoint(10, 20));
+        assertEquals(4, s.getCheckpointCount());
+        assertEquals(20, s.getCheckpoint(19, 30).getTimestamp());
+        assertNull(s.getCheckpoint(0, 30));
+        assertEquals(3, s.getCheckpointCount());
+        assertEquals(30, s.getCheckpoint(0, 31).getTimestamp());
+
+        // The most recent checkpoint before end supersedes the older ones
+        assertEquals(50, s.getCheckpoint(0, Long.MAX_VALUE).getTimestamp());
+        assertEquals(0, s.getCheckpointCount());
+        assertNull(s.getCheckpoint(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @org.junit.jupiter.api.Test
+    void longIntHashMapTest() throws Exception {
+        LongIntHashMap map = new LongIntHashMap(2);
+        // Multiples of the table sizes, negative keys and the extremes grow the map several times
+        long[] keys = new long[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = (i % 2 == 0 ? 1 : -1) * (long)i << 10;
+        }
+        keys[1] = Long.MIN_VALUE;
+        keys[3] = Long.MAX_VALUE;
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, map.get(keys[i]));
+        }
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(1));
+
+        map.put(keys[5], 1000);
+        assertEquals(keys.length, map.size());
+        assertEquals(1000, map.get(keys[5]));
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, -1));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(keys[5]));
+        map.put(keys[5], 1);
+        assertEquals(1, map.get(keys[5]));
+    }
+
+    @org.junit.jupiter.api.Test
+    void sensorRegistryOrderTest() throws Exception {
+        SensorRegistry registry = new SensorRegistry();
+        List<Long> ids = new ArrayList<>();
+        // More sensors than the initial slots, registered out of id order
+        for (long i = 0; i < 100; i++) {
+            ids.add((i * 37) % 100 - 50);
+        }
+        for (long id : ids) {
+            assertSame(registry.getOrCreate(id), registry.getOrCreate(id));
+        }
+        assertEquals(ids, new ArrayList<>(registry.keySet()));
+        for (Map.Entry<Long, Sensor> e : registry.entrySet()) {
+            assertEquals((long)e.getKey(), e.getValue().getId());
+        }
+
+        // Replacing a sensor keeps its place
+        Sensor replacement = new Sensor(ids.get(3));
+        assertNotNull(registry.put(ids.get(3), replacement));
+        assertSame(replacement, registry.get(ids.get(3)));
+        assertEquals(ids, new ArrayList<>(registry.keySet()));
+
+        assertNull(registry.get(500L));
+        assertFalse(registry.containsKey(500L));
+        assertFalse(registry.containsKey(ids.get(0).intValue()));
+        assertTrue(registry.containsKey(ids.get(0)));
+
+        registry.clear();
+        assertTrue(registry.isEmpty());
+        assertNull(registry.get(ids.get(0)));
+        registry.put(7L, new Sensor(7));
+        assertEquals(Collections.singletonList(7L), new ArrayList<>(registry.keySet()));
+    }
+
+    @org.junit.jupiter.api.Test
+    void lazyPackagePositionsTest() throws Exception {
+        Relay start = new Relay(1001), dest = new Relay(1002);
+        Package a = new Package(2, 0, wirelessContactS3_0);
+        Package b = new Package(2, 10, wirelessContactS3_0);
+        Package c = new Package(2, 20, wirelessContactS3_0);
+        PackageList list = new PackageList();
+        list.add(a);
+        list.add(b);
+        list.add(c);
+
+        list.setPositions(new Position(start, dest, 0, 100), 0, 1);
+        assertNull(a.position);
+        assertEquals(10, list.positionOf(b).getPositionInBetween(), .001);
+        assertNull(a.position);
+        assertNull(c.position);
+
+        // A recalculation leaves the old position on b until it is read again
+        list.setPositions(new Position(start, dest, 50, 100), 0, 2);
+        assertEquals(10, b.position.getPositionInBetween(), .001);
+        assertEquals(70, list.positionOf(b).getPositionInBetween(), .001);
+        assertEquals(50, list.get(0).getPosition().getPositionInBetween(), .001);
+        assertNull(c.position);
+        assertEquals(90, list.positionOf(c).getPositionInBetween(), .001);
+
+        // Packages added after the calculation stay unpositioned
+        Package d = new Package(2, 30, wirelessContactS3_0);
+        list.add(d);
+        assertNull(list.positionOf(d));
+
+        Position exact = new Position(start, dest, 100, 100);
+        list.setPositions(exact);
+        for (Package p : list) {
+            assertSame(exact, p.getPosition());
+        }
+
+        // Compact packages get their position whenever they are recreated
+        PackageList compact = new PackageList();
+        compact.setCompaction(true);
+        for (long t = 0; t <= 30; t += 10) {
+            compact.add(new Package(2, t));
+        }
+        compact.setPositions(new Position(start, dest, 0, 100), 0, 1);
+        compact.setPositions(new Position(start, dest, 20, 100), 0, 1);
+        assertEquals(30, compact.get(1).getPosition().getPositionInBetween(), .001);
+        assertNotSame(compact.get(1), compact.get(1));
+        assertEquals(50, compact.get(3).getPosition().getPositionInBetween(), .001);
+    }
+
+    @org.junit.jupiter.api.Test
+    void compactPackagesTest() throws Exception {
+        Locator locator = new Locator();
+        Locator compactLocator = new Locator();
+        compactLocator.setCompactPackages(true);
+
+        long[] timestamps = { 1, 3, 4, 6, 7, 8, 9, 10, 14, 15, 19, 21, 22 };
+        WirelessContact[] contacts = { wirelessContact1_2, wirelessContact1_1, wirelessContact1_0, null, null, null,
+                wirelessContact2_0, wirelessContact2_1, wirelessContact2_2, null, null, null, wirelessContact4_0 };
+
+        int count = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            List<Package> expected = locator.feed(new Package(2, timestamps[i], contacts[i]));
+            List<Package> result = compactLocator.feed(new Package(2, timestamps[i], contacts[i]));
+
+            assertEquals(expected.size(), result.size());
+            for (int j = 0; j < result.size(); j++) {
+                assertEquals(expected.get(j).getTimestamp(), result.get(j).getTimestamp());
+                assertEquals(expected.get(j).getPosition().getPositionInBetween(),
+                        result.get(j).getPosition().getPositionInBetween());
+                assertEquals(expected.get(j).getPosition().getDest().getId(),
+                        result.get(j).getPosition().getDest().getId());
+            }
+            count += result.size();
+        }
+        assertTrue(count > 0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void feedStateMachineTest() throws Exception {
+        long[] route = { 1001, 1002, 1003, 1002, 1004, 1002, 1001 };
+        int count = 0;
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            Locator locator = new Locator(seed % 2 == 0, seed % 4 < 2);
+            Locator referenceLocator = new Locator(seed % 2 == 0, seed % 4 < 2);
+            ReferenceFeed reference = new ReferenceFeed(referenceLocator);
+
+            long[] positions = { 0, 3, 5 };
+            for (int t = 1; t < 300; t++) {
+                long timestamp = t;
+                int sensor = random.nextInt(positions.length);
+                long position = positions[sensor]++;
+                long relay = route[(int)(position / 12) % route.length];
+                float strength = 1 - Math.abs(position % 12 - 6) / 6f + (random.nextFloat() - .5f) * .1f;
+
+                Map<Long, Float> contacts = new LinkedHashMap<>();
+                if (strength > .15f) contacts.put(relay, strength);
+                if (random.nextInt(6) == 0) contacts.put(route[random.nextInt(route.length)], random.nextFloat() * .5f);
+                if (random.nextInt(10) == 0) contacts.put((long)(sensor + 1) % positions.length + 2, .5f);
+
+                List<Package> expected = null;
+                RuntimeException expectedError = null;
+                try {
+                    expected = reference.feed(createPackage(sensor + 2, timestamp, contacts));
+                } catch (RuntimeException e) {
+                    expectedError = e;
+                }
+
+                if (expectedError != null) {
+                    Class<? extends RuntimeException> errorClass = expectedError.getClass();
+                    assertThrows(errorClass, () -> locator.feed(createPackage(sensor + 2, timestamp, contacts)));
+                    break;
+                }
+
+                List<Package> result = locator.feed(createPackage(sensor + 2, timestamp, contacts));
+                assertEquals(expected.size(), result.size(), "seed " + seed + ", t " + t);
+                count += result.size();
+                for (int i = 0; i < result.size(); i++) {
+                    assertEquals(expected.get(i).getSensorId(), result.get(i).getSensorId());
+                    assertEquals(expected.get(i).getTimestamp(), result.get(i).getTimestamp());
+                    assertEquals(String.valueOf(expected.get(i).getPosition()), String.valueOf(result.get(i).getPosition()));
+                }
+            }
+        }
+        assertTrue(count > 0);
+    }
+
+    private static Package createPackage(long sensorId, long timestamp, Map<Long, Float> contacts) {
+        Set<WirelessContact> set = new LinkedHashSet<>();
+        for (Map.Entry<Long, Float> c : contacts.entrySet()) {
+            set.add(new WirelessContact(c.getKey(), c.getValue()));
+        }
+        return new Package(sensorId, timestamp, set);
+    }
+
+    /**
+     * The conditional implementation of Locator.feed that preceded the feed state machine
+     */
+    private static class ReferenceFeed {
+        private final Locator l;
+        private float maxSignal = .9f;
+        private final float tolerance = .1f;
+
+        ReferenceFeed(Locator l) {
+            this.l = l;
+        }
+
+        List<Package> feed(Package p) {
+            Sensor s = l.sensors.getOrCreate(p.getSensorId());
+
+            for (WirelessContact w : p.contacts) {
+                if (!Node.isSensor(w.getNodeId())) {
+                    maxSignal = Math.max(w.getStrength(), maxSignal);
+                }
+            }
+
+            LinkedList<WirelessContact> detectedRelays = new LinkedList<>(p.contacts);
+            detectedRelays.removeIf(c -> Node.isSensor(c.getNodeId()));
+
+            if (detectedRelays.size() > 0) {
+                WirelessContact strongestRelayContact = WirelessContact.getStrongestSignal(detectedRelays);
+
+                for (WirelessContact relayContact : detectedRelays) {
+                    Relay relay = l.topologyAnalyzer.getRelay(relayContact.getNodeId());
+                    WirelessContact lastContact = s.getLastPackage() == null ? null : s.getLastPackage().getContactToNode(relay.getId());
+
+                    if (lastContact == null) {
+                        if (s.getLastPackage() == null) {
+                            relayContact.setDirection(Direction.WITHDRAWAL);
+                        } else {
+                            relayContact.setDirection(Direction.APPROACH);
+                        }
+                    } else if (lastContact.getStrength() < relayContact.getStrength()) {
+                        relayContact.setDirection(Direction.APPROACH);
+                    } else if (lastContact.getStrength() >= relayContact.getStrength()) {
+                        relayContact.setDirection(Direction.WITHDRAWAL);
+                        try {
+                            int index = s.getMysteryEpochs().size();
+                            if (s.getLatestEpoch() != null) {
+                                if (s.getLatestEpoch().getType() == Epoch.EpochType.RELAY_WITHDRAWAL) {
+                                    index--;
+                                }
+                            }
+
+                            if (Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), index,
+                                    true).getType() == Epoch.EpochType.RELAY_APPROACH) {
+                                l.addToEpochs(s, p, Epoch.EpochType.RELAY_WITHDRAWAL);
+                                return l.clearSensorEpochs(s);
+                            }
+                        } catch (NoSuchElementException e) {
+                            // continue
+                        }
+                    }
+                }
+
+                if (strongestRelayContact.getStrength() + tolerance >= maxSignal) {
+                    try {
+                        Epoch lastMeaningful = Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(),
+                                s.getMysteryEpochs().size(), true);
+                        if (lastMeaningful.getType() == Epoch.EpochType.RELAY_APPROACH) {
+                            l.addToEpochs(s, p, Epoch.typeFromDirection(strongestRelayContact.getDirection()));
+                            return l.clearSensorEpochs(s);
+                        }
+                    } catch (NoSuchElementException e) {
+                        if (l.addToEpochs(s, p, Epoch.EpochType.RELAY_APPROACH) == Epoch.EpochType.RELAY_APPROACH) {
+                            return l.clearSensorEpochs(s);
+                        }
+                    }
+                }
+
+                Epoch.EpochType type = l.addToEpochs(s, p, Epoch.typeFromDirection(strongestRelayContact.getDirection()));
+                if (type == Epoch.EpochType.RELAY_WITHDRAWAL) {
+                    try {
+                        if (Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), s.getMysteryEpochs().size() - 1,
+                                true).getType() == Epoch.EpochType.RELAY_APPROACH) {
+                            return l.clearSensorEpochs(s);
+                        }
+                    } catch (NoSuchElementException e) {
+                        // That's fine
+                    }
+                } else if (type == Epoch.EpochType.RELAY_APPROACH) {
+                    try {
+                        Epoch.getLastNonVoyageEpoch(s.getMysteryEpochs(), s.getMysteryEpochs().size() - 1,
+                                true);
+                        return l.clearSensorEpochs(s, s.getMysteryEpochs().size() - 1);
+                    } catch (NoSuchElementException e) {
+                        // Do nothing
+                    }
+                }
+
+            } else {
+                l.addToEpochs(s, p, Epoch.EpochType.VOYAGE);
+            }
+
+            return new LinkedList<>();
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void locatorProcessorTest() throws Exception {
+        long[] timestamps = { 1, 3, 4, 6, 7, 8, 9, 10, 14, 15, 19, 21, 22, 23, 24 };
+        WirelessContact[] contacts = { wirelessContact1_2, wirelessContact1_1, wirelessContact1_0, null, null, null,
+                wirelessContact2_0, wirelessContact2_1, wirelessContact2_2, null, null, null, wirelessContact4_0,
+                wirelessContact4_1, wirelessContact4_2 };
+
+        List<Long> expected = new ArrayList<>();
+        Locator locator = new Locator();
+        for (int i = 0; i < timestamps.length; i++) {
+            for (Package p : locator.feed(new Package(2, timestamps[i], contacts[i]))) {
+                expected.add(p.getTimestamp());
+            }
+        }
+        assertFalse(expected.isEmpty());
+
+        long[] upstreamRequested = { 0 };
+        List<Flow.Subscription> downstream = new ArrayList<>();
+        List<Long> received = new ArrayList<>();
+        boolean[] completed = { false };
+
+        LocatorProcessor processor = new LocatorProcessor(new Locator(), 4);
+        processor.subscribe(new Flow.Subscriber<Package>() {
+            public void onSubscribe(Flow.Subscription subscription) { downstream.add(subscription); }
+            public void onNext(Package p) { received.add(p.getTimestamp()); }
+            public void onError(Throwable throwable) { fail(throwable); }
+            public void onComplete() { completed[0] = true; }
+        });
+        processor.onSubscribe(new Flow.Subscription() {
+            public void request(long n) { upstreamRequested[0] += n; }
+            public void cancel() { fail("Upstream cancelled"); }
+        });
+
+        // Nothing is requested from upstream without downstream demand
+        assertEquals(0, upstreamRequested[0]);
+
+        int fed = 0;
+        while (fed < timestamps.length) {
+            if (fed == upstreamRequested[0]) downstream.get(0).request(1);
+            while (fed < Math.min(upstreamRequested[0], timestamps.length)) {
+                WirelessContact c = contacts[fed];
+                processor.onNext(new Package(2, timestamps[fed],
+                        c == null ? null : new WirelessContact(c.getNodeId(), c.getStrength())));
+                fed++;
+            }
+            // Intake stops as long as localized packages wait for demand
+            assertTrue(upstreamRequested[0] <= fed + 4);
+        }
+        processor.onComplete();
+        // Completion waits for the buffered packages
+        assertEquals(received.size() == expected.size(), completed[0]);
+        downstream.get(0).request(Long.MAX_VALUE);
+
+        assertEquals(expected, received);
+        assertTrue(completed[0]);
+    }
+
+    @org.junit.jupiter.api.Test
+    void sharedEdgePositionTest() throws Exception {
+        TopologyAnalyzer ta = new Locator().topologyAnalyzer;
+        Position r = ta.getGraphEdgePosition(new Position(ta.getRelay(1001), ta.getRelay(1004), 60, 100));
+        assertEquals(10, r.getPositionInBetween(), .001);
+        assertEquals(50, r.getTotalDistance(), .001);
+
+        // Positions at the ends of an edge are shared, positions in between are not
+        Position source = ta.getGraphEdgePosition(new Position(r.getStart(), r.getDest(), 0, r.getTotalDistance()));
+        assertEquals(0, source.getPositionInBetween());
+        assertSame(source, ta.getGraphEdgePosition(new Position(r.getStart(), r.getDest(), 0, r.getTotalDistance())));
+        Position target = ta.getGraphEdgePosition(new Position(r.getStart(), r.getDest(), 50, r.getTotalDistance()));
+        assertEquals(50, target.getPositionInBetween(), .001);
+        assertSame(target, ta.getGraphEdgePosition(new Position(r.getStart(), r.getDest(), 50, r.getTotalDistance())));
+        assertNotSame(r, ta.getGraphEdgePosition(new Position(ta.getRelay(1001), ta.getRelay(1004), 60, 100)));
+
+        Position exact = ta.getRelay(1002).getExactPosition();
+        assertSame(exact, ta.getRelay(1002).getExactPosition());
+        assertSame(ta.getRelay(1002), exact.getStart());
+        assertSame(ta.getRelay(1002), exact.getDest());
+    }
+
     @org.junit.jupiter.api.Test
     void baseLineTest() throws Exception {
         Locator locator = new Locator();
@@ -433,6 +1120,790 @@ class LocatorTest {
         locator.baseLineProcess(2L);
     }
 
+    @org.junit.jupiter.api.Test
+    void baseLineIncrementalTest() throws Exception {
+        Locator locator = new Locator();
+
+        assertEquals(0, locator.baseLineFeed(new Package(2, 1)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 2, wirelessContact1_1)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 3, wirelessContact1_2)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 4, wirelessContact1_1)).size());
+        // Ends the run with the first peak, the packages up to it cannot be localized
+        assertEquals(0, locator.baseLineFeed(new Package(2, 5)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 6)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 7, wirelessContact2_1)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 8, wirelessContact2_0)).size());
+
+        // Ends the run with the peak at 7, which completes the stage from the peak at 3
+        List<Package> stage = locator.baseLineFeed(new Package(2, 9));
+        float dist = locator.topologyAnalyzer.getDistance(1001, 1002);
+        assertEquals(4, stage.size());
+        for (int i = 0; i < stage.size(); i++) {
+            Package p = stage.get(i);
+            assertEquals(4 + i, p.getTimestamp());
+            assertEquals(1001, p.getPosition().getStart().getId());
+            assertEquals(1002, p.getPosition().getDest().getId());
+            assertEquals(dist * (i + 1) / 4, p.getPosition().getPositionInBetween(), 1e-4);
+        }
+
+        assertEquals(0, locator.baseLineFeed(new Package(2, 10)).size());
+        assertEquals(0, locator.baseLineFeed(new Package(2, 11, wirelessContact3_2)).size());
+
+        List<Package> rest = locator.baseLineProcess(2L);
+        assertEquals(4, rest.size());
+        assertEquals(8, rest.get(0).getTimestamp());
+        assertEquals(1003, rest.get(3).getPosition().getDest().getId());
+        assertEquals(0, locator.baseLineProcess(2L).size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void parallelBaselineFinishTest() throws Exception {
+        long[] route = { 1001, 1002, 1003, 1002, 1004, 1002, 1001 };
+        Random random = new Random(1);
+        BaselineStrategy sequential = new BaselineStrategy(new Locator());
+        BaselineStrategy ordered = new BaselineStrategy(new Locator());
+        BaselineStrategy unordered = new BaselineStrategy(new Locator());
+
+        long[] positions = new long[50];
+        for (int t = 1; t < 3000; t++) {
+            int sensor = random.nextInt(positions.length);
+            long position = positions[sensor]++;
+            long relay = route[(int)(position / 12) % route.length];
+            float strength = 1 - Math.abs(position % 12 - 6) / 6f + (random.nextFloat() - .5f) * .1f;
+
+            Map<Long, Float> contacts = new LinkedHashMap<>();
+            if (strength > .15f) contacts.put(relay, strength);
+            for (BaselineStrategy strategy : Arrays.asList(sequential, ordered, unordered)) {
+                strategy.feed(createPackage(sensor + 2, t, contacts));
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (Package p : sequential.finish()) {
+            expected.add(p.getSensorId() + "@" + p.getTimestamp() + " " + p.getPosition());
+        }
+        assertTrue(expected.size() > 0);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<String> actual = new ArrayList<>();
+            ordered.finish(pool, true, packages -> {
+                for (Package p : packages) {
+                    actual.add(p.getSensorId() + "@" + p.getTimestamp() + " " + p.getPosition());
+                }
+            });
+            assertEquals(expected, actual);
+
+            List<String> completed = new ArrayList<>();
+            unordered.finish(pool, false, packages -> {
+                for (Package p : packages) {
+                    completed.add(p.getSensorId() + "@" + p.getTimestamp() + " " + p.getPosition());
+                }
+            });
+            Collections.sort(expected);
+            Collections.sort(completed);
+            assertEquals(expected, completed);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void packageFileReaderFollowTest() throws Exception {
+        Path directory = Files.createTempDirectory("gral-follow");
+        Path file = directory.resolve("packages.jsonl");
+        Path offsetFile = directory.resolve("offset");
+        Path rotated = directory.resolve("packages.jsonl.1");
+        StandardOpenOption append = StandardOpenOption.APPEND;
+        try {
+            Files.writeString(file, "line1\nline2\r\nline3\nli");
+
+            List<String> lines = Collections.synchronizedList(new ArrayList<>());
+            PackageFileReader reader = new PackageFileReader(file, offsetFile, lines::add);
+            ExecutorService thread = Executors.newSingleThreadExecutor();
+            Future<?> following = thread.submit(() -> {
+                reader.read(true);
+                return null;
+            });
+            try {
+                awaitSize(lines, 3);
+
+                // The partial line is only handled once it is terminated
+                Thread.sleep(2 * PackageFileReader.POLL_INTERVAL);
+                assertEquals(3, lines.size());
+                Files.writeString(file, "ne4\nline5\n", append);
+                awaitSize(lines, 5);
+
+                // Lines written to the rotated file before the new one appears are still handled
+                Files.move(file, rotated);
+                Files.writeString(rotated, "line6\n", append);
+                Files.writeString(file, "line7\nline8\n");
+                awaitSize(lines, 8);
+
+                // Truncated in place, the file key stays the same
+                Files.writeString(file, "line9\n", StandardOpenOption.TRUNCATE_EXISTING);
+                awaitSize(lines, 9);
+            } finally {
+                reader.stop();
+                following.get(10, TimeUnit.SECONDS);
+                thread.shutdown();
+            }
+            assertEquals(Arrays.asList("line1", "line2", "line3", "line4", "line5", "line6", "line7", "line8",
+                    "line9"), lines);
+
+            // A restarted reader resumes behind the last handled line
+            Files.writeString(file, "line10\nline11", append);
+            List<String> resumed = new ArrayList<>();
+            new PackageFileReader(file, offsetFile, resumed::add).read(false);
+            assertEquals(Arrays.asList("line10", "line11"), resumed);
+
+            resumed.clear();
+            new PackageFileReader(file, offsetFile, resumed::add).read(false);
+            assertEquals(0, resumed.size());
+
+            // An offset of another file is ignored
+            Files.delete(file);
+            Files.writeString(file, "line12\n");
+            new PackageFileReader(file, offsetFile, resumed::add).read(false);
+            assertEquals(Collections.singletonList("line12"), resumed);
+        } finally {
+            for (Path p : new Path[] { file, rotated, offsetFile }) {
+                Files.deleteIfExists(p);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void gzipRoundTripTest() throws Exception {
+        Path file = Files.createTempFile("gral", ".jsonl.gz");
+        try {
+            // Several times the chunks of the reader, with lines and characters crossing the chunk boundaries
+            List<String> written = new ArrayList<>();
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < 6000; i++) {
+                line.append(i % 7 == 0 ? "ü" : "x");
+                written.add(i + ":" + line);
+                if (line.length() > 4000) line.setLength(0);
+            }
+            assertTrue(written.stream().mapToInt(String::length).sum() > 5 * PackageFileReader.BUFFER_SIZE);
+
+            try (PrintStream out = Main.openOutput(file, false)) {
+                for (int i = 0; i < written.size() - 1; i++) {
+                    out.println(written.get(i));
+                }
+                // The last line is not terminated
+                out.print(written.get(written.size() - 1));
+            }
+            byte[] magic = new byte[2];
+            try (InputStream in = Files.newInputStream(file)) {
+                assertEquals(2, in.read(magic));
+            }
+            assertArrayEquals(new byte[] { 0x1f, (byte)0x8b }, magic);
+
+            List<String> read = new ArrayList<>();
+            new PackageFileReader(file, null, read::add).read(false);
+            assertEquals(written, read);
+
+            try (Stream<String> lines = Main.lines(file)) {
+                assertEquals(written, lines.collect(Collectors.toList()));
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> new PackageFileReader(file, null, read::add).read(true));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void manifestFailingJobTest() throws Exception {
+        Path directory = Files.createTempDirectory("gral-manifest");
+        try {
+            Files.copy(Paths.get("exampleEnvironment.json"), directory.resolve("env.json"));
+            Files.writeString(directory.resolve("broken.json"), "no graph\n");
+
+            long[] route = { 1001, 1002, 1003, 1002, 1004 };
+            List<String> lines = new ArrayList<>();
+            for (int t = 0; t < 200; t++) {
+                long relay = route[(t / 10) % route.length];
+                float strength = 1 - Math.abs(t % 10 - 5) / 5f;
+                lines.add(String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": "
+                        + "[{ \"deviceId\": %d, \"strength\": %f }] }", 2 + t % 2, t, relay, Math.max(.2f, strength)));
+            }
+            Files.write(directory.resolve("in.jsonl"), lines);
+            // A relay id cannot be the id of a sensor, so localization fails at the last line
+            lines.add("{ \"deviceId\": 1005, \"timestamp\": 200, \"contacts\": [] }");
+            Files.write(directory.resolve("failing.jsonl"), lines);
+
+            String job = "{ \"name\": \"%s\", \"topology\": \"%s\", \"input\": \"%s\", \"output\": \"%s\" }";
+            Files.writeString(directory.resolve("single.json"), "[" + String.format(job,
+                    "single", "env.json", "in.jsonl", "single.jsonl") + "]");
+            Files.writeString(directory.resolve("manifest.json"), "[" + String.join(",",
+                    String.format(job, "first", "env.json", "in.jsonl", "first.jsonl"),
+                    String.format(job, "graph", "broken.json", "in.jsonl", "graph.jsonl"),
+                    String.format(job, "localization", "env.json", "failing.jsonl", "localization.jsonl"),
+                    String.format(job, "missing", "env.json", "missing.jsonl", "missing-out.jsonl"),
+                    String.format(job, "last", "env.json", "in.jsonl", "last.jsonl")) + "]");
+
+            List<ManifestRunner.JobStats> single = new ManifestRunner(directory.resolve("single.json")).run(1);
+            assertNull(single.get(0).failure);
+            List<String> expected = Files.readAllLines(directory.resolve("single.jsonl"));
+            assertTrue(expected.size() > 100);
+
+            List<ManifestRunner.JobStats> stats = new ManifestRunner(directory.resolve("manifest.json")).run(3);
+            assertEquals(Arrays.asList("first", "graph", "localization", "missing", "last"),
+                    stats.stream().map(st -> st.job.name).collect(Collectors.toList()));
+
+            assertNull(stats.get(0).failure);
+            assertNull(stats.get(4).failure);
+            assertEquals(200, stats.get(0).packages);
+            assertEquals(expected, Files.readAllLines(directory.resolve("first.jsonl")));
+            assertEquals(expected, Files.readAllLines(directory.resolve("last.jsonl")));
+
+            assertTrue(stats.get(1).failure instanceof IllegalArgumentException);
+            assertEquals(0, stats.get(1).packages);
+            assertNotNull(stats.get(2).failure);
+            assertEquals(200, stats.get(2).packages);
+            assertTrue(stats.get(3).failure instanceof NoSuchFileException);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ManifestRunner.printStatistics(stats, 1, new PrintStream(bytes, true, "UTF-8"));
+            assertTrue(bytes.toString("UTF-8").contains("localization: failed after 200 packages"));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path f : files.collect(Collectors.toList())) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void manifestOutputErrorTest() throws Exception {
+        // Every write to /dev/full fails with a full disk
+        Path full = Paths.get("/dev/full");
+        assumeTrue(Files.isWritable(full));
+
+        Path directory = Files.createTempDirectory("gral-manifest");
+        try {
+            Files.copy(Paths.get("exampleEnvironment.json"), directory.resolve("env.json"));
+            List<String> lines = new ArrayList<>();
+            for (int t = 0; t < 100; t++) {
+                lines.add(String.format("{ \"deviceId\": 2, \"timestamp\": %d, \"contacts\": "
+                        + "[{ \"deviceId\": %d, \"strength\": 1.0 }] }", t, t % 20 < 10 ? 1001 : 1002));
+            }
+            Files.write(directory.resolve("in.jsonl"), lines);
+            String job = "{ \"name\": \"%s\", \"topology\": \"env.json\", \"input\": \"in.jsonl\", \"output\": \"%s\" }";
+            Files.writeString(directory.resolve("manifest.json"), "[" + String.join(",",
+                    String.format(job, "full", full), String.format(job, "out", "out.jsonl")) + "]");
+
+            List<ManifestRunner.JobStats> stats = new ManifestRunner(directory.resolve("manifest.json")).run(2);
+            assertTrue(stats.get(0).localized > 0);
+            assertTrue(stats.get(0).failure instanceof IOException);
+            assertNull(stats.get(1).failure);
+            assertEquals(stats.get(1).localized, Files.readAllLines(directory.resolve("out.jsonl")).size());
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path f : files.collect(Collectors.toList())) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, list.size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void externalSorterTest() throws Exception {
+        Random random = new Random(1);
+        List<String> expected = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(2048, 3)) {
+            for (int i = 0; i < 2000; i++) {
+                long key = random.nextInt(50);
+                sorter.add(key, i, key + " " + i);
+                expected.add(key + " " + i);
+            }
+            assertTrue(sorter.getRunCount() > 10);
+
+            List<String> sorted = new ArrayList<>();
+            for (Iterator<ExternalSorter.Record> it = sorter.sorted(); it.hasNext(); ) {
+                sorted.add(it.next().payload);
+            }
+            // Only one run is read besides the records in memory if the budget does not cover more buffers
+            assertEquals(1, sorter.getRunCount());
+
+            expected.sort(Comparator.comparingLong((String r) -> Long.parseLong(r.split(" ")[0]))
+                    .thenComparingLong(r -> Long.parseLong(r.split(" ")[1])));
+            assertEquals(expected, sorted);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void offlineLocalizerTest() throws Exception {
+        long[] route = { 1001, 1002, 1003, 1002, 1004, 1002, 1001 };
+        Random random = new Random(3);
+        List<String> lines = new ArrayList<>();
+        // Every sensor starts at a relay, Position.toJsonString cannot write the unknown start of other sensors
+        long[] positions = { 6, 18, 30, 42, 54 };
+        for (int t = 1; t < 600; t++) {
+            int sensor = random.nextInt(positions.length);
+            long position = positions[sensor]++;
+            long relay = route[(int)(position / 12) % route.length];
+            float strength = 1 - Math.abs(position % 12 - 6) / 6f + (random.nextFloat() - .5f) * .1f;
+
+            StringBuilder contacts = new StringBuilder();
+            if (strength > .15f) contacts.append(String.format("{ \"deviceId\": %d, \"strength\": %f }", relay, strength));
+            lines.add(String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": [%s] }",
+                    sensor + 2, t, contacts));
+        }
+        Path input = Files.createTempFile("gral-offline", ".jsonl");
+        Files.write(input, lines);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (boolean baseline : new boolean[] { false, true }) {
+                TopologyAnalyzer t = new Locator().topologyAnalyzer;
+                Supplier<Locator> factory = () -> {
+                    Locator l = new Locator(t, false, false);
+                    l.setProvisionalEstimates(!baseline);
+                    l.setCompactPackages(true);
+                    return l;
+                };
+
+                List<String> expected = new ArrayList<>();
+                Locator streaming = factory.get();
+                LocalizationStrategy strategy = baseline ? new BaselineStrategy(streaming) : streaming;
+                PackageSink sink = (p, compat) -> expected.add(p.toJsonString(compat, new LinkedList<>(), t));
+                for (String line : lines) {
+                    Main.parseJsonLine(line, strategy, sink);
+                }
+                for (Package p : strategy.finish()) {
+                    sink.accept(p, false);
+                }
+                assertTrue(expected.size() > 100);
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                PrintStream out = new PrintStream(bytes, true, "UTF-8");
+                // A small sort budget spills many runs and merges them in several passes
+                new OfflineLocalizer(factory, baseline, new LinkedList<>(), 4096, pool).run(input, out);
+                List<String> actual = Arrays.asList(bytes.toString("UTF-8").split(System.lineSeparator()));
+                assertEquals(expected, actual, "baseline " + baseline);
+            }
+        } finally {
+            pool.shutdown();
+            Files.delete(input);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void twoPassBaselineTest() throws Exception {
+        long[] route = { 1001, 1002, 1003, 1002, 1004, 1002, 1001 };
+        int count = 0;
+        for (int seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            Locator locator = new Locator();
+            TwoPassLocalizer twoPass = new TwoPassLocalizer(locator.topologyAnalyzer, new LinkedList<>());
+
+            Map<String, String> expected = new HashMap<>();
+            List<Package> packages = new ArrayList<>();
+            long[] positions = { 0, 3, 5 };
+            for (int t = 1; t < 300; t++) {
+                int sensor = random.nextInt(positions.length);
+                long position = positions[sensor]++;
+                long relay = route[(int)(position / 12) % route.length];
+                float strength = 1 - Math.abs(position % 12 - 6) / 6f + (random.nextFloat() - .5f) * .1f;
+
+                Map<Long, Float> contacts = new LinkedHashMap<>();
+                if (strength > .15f) contacts.put(relay, strength);
+                if (random.nextInt(6) == 0) contacts.put(route[random.nextInt(route.length)], random.nextFloat() * .5f);
+
+                packages.add(createPackage(sensor + 2, t, contacts));
+                for (Package p : locator.baseLineFeed(createPackage(sensor + 2, t, contacts))) {
+                    expected.put(p.getSensorId() + "@" + p.getTimestamp(), String.valueOf(p.getPosition()));
+                }
+                twoPass.index(packages.get(packages.size() - 1));
+            }
+            twoPass.finishIndex();
+
+            for (long sensor = 2; sensor < 2 + positions.length; sensor++) {
+                for (Package p : locator.baseLineProcess(sensor)) {
+                    expected.put(p.getSensorId() + "@" + p.getTimestamp(), String.valueOf(p.getPosition()));
+                }
+            }
+
+            int localized = 0;
+            for (Package p : packages) {
+                if (!twoPass.localize(p)) continue;
+                assertEquals(expected.get(p.getSensorId() + "@" + p.getTimestamp()), String.valueOf(p.getPosition()),
+                        "seed " + seed);
+                localized++;
+            }
+            assertEquals(expected.size(), localized);
+            count += localized;
+        }
+        assertTrue(count > 0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void ingestServerTest() throws Exception {
+        int queueCapacity = 8;
+        int connections = 100;
+        int packagesPerConnection = 20;
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<Package> fed = Collections.synchronizedList(new ArrayList<>());
+        List<Package> sunk = Collections.synchronizedList(new ArrayList<>());
+        int[] maxBacklog = { 0 };
+        LocalizationStrategy strategy = new LocalizationStrategy() {
+            @Override
+            public List<Package> feed(Package p) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                fed.add(p);
+                return new ArrayList<>(Collections.singletonList(p));
+            }
+
+            @Override
+            public List<Package> finish() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public void reportBacklog(int backlog) {
+                maxBacklog[0] = Math.max(maxBacklog[0], backlog);
+            }
+        };
+
+        IngestServer server = new IngestServer(strategy, (p, compat) -> sunk.add(p), queueCapacity);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        assertTrue(server.usesSelectors() || Runtime.version().feature() >= 21);
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            // More connections than the old platform thread pool had threads, all sent while the locator is blocked
+            for (int c = 0; c < connections; c++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                sockets.add(socket);
+                OutputStream out = socket.getOutputStream();
+                for (int t = 1; t <= packagesPerConnection; t++) {
+                    String line = c % 2 == 0
+                            ? String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": [] }", c + 2, t)
+                            : String.format("{ \"id\": %d, \"time\": %d, \"value\": [] }", c + 2, t);
+                    byte[] bytes = (line + (c % 3 == 0 ? "\r\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+                    if (c == 0) {
+                        // A line split across two writes is only queued once it is complete
+                        out.write(bytes, 0, bytes.length / 2);
+                        out.flush();
+                        Thread.sleep(5);
+                        out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                    } else {
+                        out.write(bytes);
+                    }
+                }
+                out.flush();
+            }
+
+            Thread.sleep(200);
+            assertEquals(0, fed.size());
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (fed.size() < connections * packagesPerConnection && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            release.countDown();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.close();
+            server.awaitTermination();
+        }
+
+        assertEquals(connections * packagesPerConnection, fed.size());
+        assertEquals(fed, sunk);
+        assertTrue(maxBacklog[0] <= queueCapacity);
+
+        // The packages of every connection arrive in the order they were sent
+        long[] lastTimestamps = new long[connections + 2];
+        for (Package p : fed) {
+            assertEquals(lastTimestamps[(int)p.getSensorId()] + 1, p.getTimestamp());
+            lastTimestamps[(int)p.getSensorId()] = p.getTimestamp();
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void httpIngestEndpointTest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        LocalizationStrategy strategy = new LocalizationStrategy() {
+            @Override
+            public List<Package> feed(Package p) {
+                if (p.getTimestamp() == 99) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return new ArrayList<>(Collections.singletonList(p));
+            }
+
+            @Override
+            public List<Package> finish() {
+                return new ArrayList<>();
+            }
+        };
+
+        HttpIngestEndpoint endpoint = new HttpIngestEndpoint(strategy, null, new TopologyAnalyzer(),
+                new LinkedList<>(), 2, 1);
+        endpoint.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        String url = "http://localhost:" + endpoint.getPort() + HttpIngestEndpoint.PATH;
+        try {
+            assertEquals(200, post(url, "[{ \"deviceId\": 2, \"timestamp\": 1, \"contacts\": [] }]"));
+            assertEquals(400, post(url, "[{ \"deviceId\": 2, \"timestamp\": 1, \"contacts\": [] }"));
+            assertEquals(400, post(url, "{ \"deviceId\": 2 }"));
+            assertEquals(413, post(url, "[{ \"id\": 2, \"time\": 1, \"value\": [] }, "
+                    + "{ \"id\": 2, \"time\": 2, \"value\": [] }, { \"id\": 2, \"time\": 3, \"value\": [] }]"));
+
+            // A second request is rejected while the only permit is held by a blocked one
+            ExecutorService client = Executors.newSingleThreadExecutor();
+            try {
+                Future<Integer> blocked = client.submit(
+                        () -> post(url, "[{ \"deviceId\": 2, \"timestamp\": 99, \"contacts\": [] }]"));
+                assertTrue(entered.await(10, TimeUnit.SECONDS));
+                assertEquals(503, post(url, "[{ \"deviceId\": 3, \"timestamp\": 1, \"contacts\": [] }]"));
+                release.countDown();
+                assertEquals(200, (int)blocked.get(10, TimeUnit.SECONDS));
+            } finally {
+                release.countDown();
+                client.shutdown();
+            }
+            assertEquals(200, post(url, "[]"));
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void httpIngestEndpointCloseTest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        LocalizationStrategy strategy = new LocalizationStrategy() {
+            @Override
+            public List<Package> feed(Package p) {
+                if (p.getTimestamp() == 7) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                events.add("feed " + p.getTimestamp());
+                return new ArrayList<>(Collections.singletonList(p));
+            }
+
+            @Override
+            public List<Package> finish() {
+                events.add("finish");
+                return new ArrayList<>();
+            }
+        };
+        PackageSink sink = (p, compat) -> events.add("sink " + p.getTimestamp());
+
+        HttpIngestEndpoint endpoint = new HttpIngestEndpoint(strategy, sink, new TopologyAnalyzer(),
+                new LinkedList<>(), 10, 2);
+        endpoint.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        String url = "http://localhost:" + endpoint.getPort() + HttpIngestEndpoint.PATH;
+
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try {
+            threads.submit(() -> post(url, "[{ \"deviceId\": 2, \"timestamp\": 7, \"contacts\": [] }]"));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            // The second batch is parsed and waits for the strategy
+            threads.submit(() -> post(url, "[{ \"deviceId\": 3, \"timestamp\": 8, \"contacts\": [] }]"));
+            Thread.sleep(200);
+
+            // Closing waits for both requests, also beyond the second the server waits for running exchanges
+            Future<?> closed = threads.submit(endpoint::close);
+            Thread.sleep(1500);
+            assertFalse(closed.isDone());
+            release.countDown();
+            closed.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            threads.shutdown();
+        }
+        assertEquals(Arrays.asList("feed 7", "sink 7", "feed 8", "sink 8", "finish"), events);
+    }
+
+    private static int post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    @org.junit.jupiter.api.Test
+    void adaptiveStrategyTest() throws Exception {
+        long[] route = { 1001, 1002, 1003, 1002, 1004, 1002, 1001 };
+        for (int seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            Locator reference = new Locator(false, false);
+            AdaptiveStrategy adaptive = new AdaptiveStrategy(new Locator(false, false), 100, 50);
+            AdaptiveStrategy relaxed = new AdaptiveStrategy(new Locator(false, false), 100, 50);
+
+            Set<Package> emitted = Collections.newSetFromMap(new IdentityHashMap<>());
+            long[] positions = { 0, 3, 5 };
+            for (int t = 1; t < 300; t++) {
+                int sensor = random.nextInt(positions.length);
+                long position = positions[sensor]++;
+                long relay = route[(int)(position / 12) % route.length];
+                float strength = 1 - Math.abs(position % 12 - 6) / 6f + (random.nextFloat() - .5f) * .1f;
+
+                Map<Long, Float> contacts = new LinkedHashMap<>();
+                if (strength > .15f) contacts.put(relay, strength);
+
+                // A burst of backlog between t = 100 and t = 200
+                adaptive.reportBacklog(t >= 100 && t < 200 ? 150 : 10);
+                relaxed.reportBacklog(10);
+
+                List<Package> expected = reference.feed(createPackage(sensor + 2, t, contacts));
+                List<Package> result = relaxed.feed(createPackage(sensor + 2, t, contacts));
+                assertEquals(expected.size(), result.size());
+                for (int i = 0; i < result.size(); i++) {
+                    assertEquals(expected.get(i).getTimestamp(), result.get(i).getTimestamp());
+                    assertEquals(String.valueOf(expected.get(i).getPosition()), String.valueOf(result.get(i).getPosition()));
+                }
+
+                for (Package r : adaptive.feed(createPackage(sensor + 2, t, contacts))) {
+                    assertNotNull(r.getPosition());
+                    assertTrue(emitted.add(r), "seed " + seed + ", t " + t);
+                }
+            }
+            for (Package r : adaptive.finish()) {
+                assertTrue(emitted.add(r));
+            }
+
+            assertEquals(positions.length, adaptive.getSwitchesToBaseline());
+            assertEquals(positions.length, adaptive.getSwitchesToGral());
+            assertEquals(0, relaxed.getSwitchesToBaseline());
+            assertTrue(emitted.size() > 100);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void adaptiveSwitchPendingEpochsTest() throws Exception {
+        Locator locator = new Locator(false, false);
+        AdaptiveStrategy adaptive = new AdaptiveStrategy(locator, 1, 0);
+        long[] timestamps = { 1, 3, 4, 6, 7, 8, 9, 10, 11, 12, 13, 15, 17, 19, 20, 22, 24 };
+        long[] relays = { 1001, 1001, 1001, 0, 0, 0, 1002, 1002, 1002, 1002, 1002, 0, 0, 1003, 0, 1003, 0 };
+        float[] strengths = { .95f, .7f, .1f, 0, 0, 0, .1f, .7f, .95f, .7f, .1f, 0, 0, .1f, 0, .3f, 0 };
+
+        List<Package> result = new ArrayList<>();
+        for (int i = 0; i < timestamps.length; i++) {
+            if (timestamps[i] == 19) {
+                // The sensor was localized at 1002 at 11 and has a withdrawal and a voyage epoch pending since
+                Sensor s = locator.sensors.get(2L);
+                assertEquals(11, s.getLastPurge());
+                assertEquals(13, s.lastEpochEnd);
+                assertEquals(2, s.getMysteryEpochs().size());
+                adaptive.reportBacklog(5);
+            }
+            result.addAll(adaptive.feed(relays[i] == 0 ? new Package(2, timestamps[i])
+                    : new Package(2, timestamps[i], new WirelessContact(relays[i], strengths[i]))));
+        }
+        assertEquals(1, adaptive.getSwitchesToBaseline());
+
+        float last = 0;
+        int handedOver = 0;
+        for (Package p : result) {
+            if (p.getTimestamp() <= 11) continue;
+            Position position = p.getPosition();
+            assertEquals(1002, position.getStart().getId());
+            assertEquals(1003, position.getDest().getId());
+            assertTrue(position.getPositionInBetween() >= last, "timestamp " + p.getTimestamp());
+            assertTrue(position.getPositionInBetween() <= position.getTotalDistance());
+            last = position.getPositionInBetween();
+            handedOver++;
+        }
+        assertTrue(last > 0);
+        assertEquals(5, handedOver);
+    }
+
+    @org.junit.jupiter.api.Test
+    void adaptiveSwitchBackTest() throws Exception {
+        Locator locator = new Locator(false, false);
+        AdaptiveStrategy adaptive = new AdaptiveStrategy(locator, 1, 0);
+        long[] timestamps = { 1, 3, 4, 6, 7, 8, 9, 10, 11, 12, 13, 15, 17, 19, 20, 22, 24, 26, 28, 30, 32, 34, 36, 38 };
+        long[] relays = { 1001, 1001, 1001, 0, 0, 0, 1002, 1002, 1002, 1002, 1002, 0, 0, 1003, 0, 1003, 1003, 1003,
+                1003, 0, 0, 1002, 1002, 0 };
+        float[] strengths = { .95f, .7f, .1f, 0, 0, 0, .1f, .7f, .95f, .7f, .1f, 0, 0, .1f, 0, .3f, .7f, .95f, .7f,
+                0, 0, .3f, .6f, 0 };
+
+        Map<Long, Package> emitted = new TreeMap<>();
+        Package lastBaseline = null;
+        for (int i = 0; i < timestamps.length; i++) {
+            Sensor s = locator.sensors.get(2L);
+            if (timestamps[i] == 19) adaptive.reportBacklog(5);
+            if (timestamps[i] == 30) {
+                // A rendez-vous reported while the sensor is localized with the baseline
+                s.addRendezVous(new RendezVous(new Position(new Relay(1002), new Relay(1003), 40, 50), s, 18));
+                assertEquals(1, s.getCheckpointCount());
+            }
+            if (timestamps[i] == 32) {
+                assertEquals(11, s.getLastPurge());
+                for (Package p : emitted.values()) {
+                    if (lastBaseline == null || p.getTimestamp() > lastBaseline.getTimestamp()) lastBaseline = p;
+                }
+                adaptive.reportBacklog(0);
+            }
+
+            List<Package> result = adaptive.feed(relays[i] == 0 ? new Package(2, timestamps[i])
+                    : new Package(2, timestamps[i], new WirelessContact(relays[i], strengths[i])));
+            for (Package p : result) {
+                assertNotNull(p.getPosition());
+                assertNull(emitted.put(p.getTimestamp(), p));
+            }
+
+            if (timestamps[i] == 32) {
+                // GRAL continues from the latest package the baseline has localized
+                assertEquals(19, lastBaseline.getTimestamp());
+                assertEquals(19, s.getLastPurge());
+                assertSame(lastBaseline.getPosition(), s.getLastKnownPosition());
+                assertEquals(0, s.getCheckpointCount());
+                assertEquals(19, (long)s.getMysteryEpochs().get(0).getStartTime());
+            }
+        }
+        for (Package p : adaptive.finish()) {
+            assertNull(emitted.put(p.getTimestamp(), p));
+        }
+        // GRAL does not localize the packages after the last relay peak
+        for (long t : timestamps) {
+            assertEquals(t <= 32, emitted.containsKey(t), "timestamp " + t);
+        }
+        assertEquals(1, adaptive.getSwitchesToGral());
+    }
+
     @org.junit.jupiter.api.Test
     void getEarliestSharedNodeTest() throws Exception {
         TopologyAnalyzer ta = new TopologyAnalyzer();
@@ -440,4 +1911,45 @@ class LocatorTest {
         assertEquals(ta.getRelay(1002), ta.getEarliestSharedNode(ta.getRelay(1001), ta.getRelay(1003), ta.getRelay(1002)));
         assertEquals(ta.getRelay(1001), ta.getEarliestSharedNode(ta.getRelay(1001), ta.getRelay(1001), ta.getRelay(1002)));
     }
+
+    @org.junit.jupiter.api.Test
+    void confluenceCacheTest() throws Exception {
+        TopologyAnalyzer ta = new TopologyAnalyzer(2);
+        for (long id = 1001; id <= 1004; id++) ta.addRelay(id);
+        ta.addEdge(1001, 1002, 100);
+        ta.addEdge(1002, 1003, 100);
+        ta.addEdge(1003, 1004, 100);
+
+        Relay r1 = ta.getRelay(1001), r2 = ta.getRelay(1002), r3 = ta.getRelay(1003), r4 = ta.getRelay(1004);
+
+        assertEquals(r1, ta.getEarliestSharedNode(r1, r3, r4));
+        assertEquals(r1, ta.getEarliestSharedNode(r1, r3, r4));
+        assertEquals(1, ta.getConfluenceCacheHits());
+        assertEquals(1, ta.getConfluenceCacheMisses());
+
+        // Using the first query again keeps it when the third one evicts the least recently used second one
+        ta.getEarliestConfluence(r1, r2, r3);
+        ta.getEarliestConfluence(r1, r3, r4);
+        ta.getEarliestConfluence(r2, r3, r4);
+        assertEquals(2, ta.getConfluenceCacheHits());
+        assertEquals(3, ta.getConfluenceCacheMisses());
+        ta.getEarliestConfluence(r1, r3, r4);
+        assertEquals(3, ta.getConfluenceCacheHits());
+        ta.getEarliestConfluence(r1, r2, r3);
+        assertEquals(4, ta.getConfluenceCacheMisses());
+
+        // A new relay invalidates the cache
+        ta.addRelay(1005);
+        ta.getEarliestConfluence(r1, r3, r4);
+        assertEquals(3, ta.getConfluenceCacheHits());
+        assertEquals(5, ta.getConfluenceCacheMisses());
+
+        // A shortcut changes the answer, which is calculated again
+        ta.addEdge(1001, 1004, 50);
+        TopologyAnalyzer.Confluence confluence = ta.getEarliestConfluence(r1, r3, r4);
+        assertEquals(r4, confluence.node);
+        assertEquals(50, confluence.distance, .001);
+        assertEquals(3, ta.getConfluenceCacheHits());
+        assertEquals(6, ta.getConfluenceCacheMisses());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package de.haug.gral;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to non-negative int values.
+ * Avoids boxing the keys and allocating an entry object per mapping.
+ */
+class LongIntHashMap implements Serializable {
+    /**
+     * Value returned by get for absent keys
+     */
+    static final int NO_VALUE = -1;
+
+    /**
+     * Maximum share of occupied buckets before the table grows
+     */
+    private static final float LOAD_FACTOR = .5f;
+
+    private long[] keys;
+
+    /**
+     * Values of the buckets, NO_VALUE for empty buckets
+     */
+    private int[] values;
+
+    private int size = 0;
+
+    /**
+     * Constructs an empty map
+     */
+    LongIntHashMap() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty map
+     * @param expectedSize Number of mappings the map can hold without growing
+     */
+    LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int)(expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    /**
+     * @param key The key to look up
+     * @return The value mapped to key or NO_VALUE if there is none
+     */
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = bucket(key, mask); values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Maps key to value, replacing a previous mapping
+     * @param key The key
+     * @param value The non-negative value
+     */
+    void put(long key, int value) {
+        if (value < 0) throw new IllegalArgumentException("Values have to be non-negative");
+
+        int mask = keys.length - 1;
+        int i = bucket(key, mask);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) grow();
+    }
+
+    /**
+     * @return The number of mappings
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all mappings
+     */
+    void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    /**
+     * Doubles the capacity and reinserts all mappings
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, NO_VALUE);
+
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == NO_VALUE) continue;
+
+            int i = bucket(oldKeys[j], mask);
+            while (values[i] != NO_VALUE) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Spreads the key bits since sensor ids are usually sequential
+     */
+    private static int bucket(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+}
@@ -6,15 +6,21 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class Main {
 
@@ -35,6 +41,63 @@ public class Main {
         Option optionBaseline = new Option("b", "baseline", false,
                 "Use a primitive baseline algorithm instead of GRAL");
 
+        Option optionProvisional = new Option("p", "provisional", false,
+                "Output provisional positions for pending packages and revise them later");
+
+        Option optionMaxPendingAge = new Option(null, "maxPendingAge", true,
+                "Localize packages with low confidence once they are pending for longer than this age");
+
+        Option optionCompact = new Option(null, "compact", false,
+                "Store pending packages without contacts compactly to reduce memory usage");
+
+        Option optionStats = new Option(null, "stats", false,
+                "Print runtime statistics to standard error after processing a file or on shutdown");
+
+        Option optionOutput = new Option("o", "output", true,
+                "Write localized packages to this file instead of standard output");
+
+        Option optionListen = new Option(null, "listen", true,
+                "Accept newline-delimited package JSONs from TCP connections on [HOST:]PORT");
+
+        Option optionHttp = new Option(null, "http", true,
+                "Accept POSTed JSON arrays of packages on [HOST:]PORT" + HttpIngestEndpoint.PATH);
+
+        Option optionHttpMaxBatch = new Option(null, "httpMaxBatch", true,
+                "Maximum number of packages per HTTP request, defaults to " + HttpIngestEndpoint.DEFAULT_MAX_BATCH_SIZE);
+
+        Option optionHttpMaxRequests = new Option(null, "httpMaxRequests", true,
+                "Maximum number of concurrently handled HTTP requests, defaults to "
+                        + HttpIngestEndpoint.DEFAULT_MAX_CONCURRENT_REQUESTS);
+
+        Option optionFollow = new Option(null, "follow", false,
+                "Keep reading the package file as it grows and follow it across rotations");
+
+        Option optionOffsetFile = new Option(null, "offsetFile", true,
+                "Persist the processed byte offset of the package file in this file and resume from it");
+
+        Option optionOffline = new Option(null, "offline", false,
+                "Sort the complete package file by sensor and localize the sensors in parallel, "
+                        + "not supported with -c, -r and --maxPendingAge");
+
+        Option optionSortMemory = new Option(null, "sortMemory", true,
+                "Megabytes the offline mode may keep in memory while sorting, defaults to a quarter of the heap");
+
+        Option optionTwoPass = new Option(null, "twoPass", false,
+                "Localize the package file with the baseline in two passes over an index of relay peaks");
+
+        Option optionAdaptive = new Option(null, "adaptive", true,
+                "Switch sensors to the baseline while more than N packages wait to be localized, back at N/2");
+
+        Option optionManifest = new Option(null, "manifest", true,
+                "Run the jobs of a JSON manifest concurrently, each with its own environment graph and files");
+
+        Option optionThreads = new Option(null, "threads", true,
+                "Number of manifest jobs, offline sensors or baseline sensors finished at the end of the file to process "
+                        + "at the same time, defaults to the number of processors");
+
+        Option optionUnordered = new Option(null, "unordered", false,
+                "Write the baseline sensors finished at the end of the file as each one is done instead of in sensor order");
+
         Option optionHelp = new Option(null, "help", false,
                 "Print this message and quit");
 
@@ -50,6 +113,24 @@ public class Main {
         options.addOption(optionExample);
         options.addOption(optionBaseline);
         options.addOption(optionApplyEndpoints);
+        options.addOption(optionProvisional);
+        options.addOption(optionMaxPendingAge);
+        options.addOption(optionCompact);
+        options.addOption(optionStats);
+        options.addOption(optionOutput);
+        options.addOption(optionListen);
+        options.addOption(optionHttp);
+        options.addOption(optionHttpMaxBatch);
+        options.addOption(optionHttpMaxRequests);
+        options.addOption(optionFollow);
+        options.addOption(optionOffsetFile);
+        options.addOption(optionOffline);
+        options.addOption(optionSortMemory);
+        options.addOption(optionTwoPass);
+        options.addOption(optionAdaptive);
+        options.addOption(optionManifest);
+        options.addOption(optionThreads);
+        options.addOption(optionUnordered);
         options.addOption(optionHelp);
 
         HelpFormatter formatter = new HelpFormatter();
@@ -67,18 +148,38 @@ public class Main {
             return;
         }
 
-        List<Long[]> ranges = new LinkedList<>();
+        if (commandLine.hasOption(optionManifest.getLongOpt())) {
+            int threads;
+            try {
+                threads = Integer.parseInt(commandLine.getOptionValue(optionThreads.getLongOpt(),
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                if (threads < 1) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                System.out.println("The number of threads has to be a positive integer");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
 
-        if (commandLine.hasOption(optionApplyEndpoints.getLongOpt())) {
-            String s = commandLine.getOptionValue(optionApplyEndpoints.getOpt());
-            String[] res = s.split(",");
-            for (String range : res) {
-                String[] nums = range.split("-");
-                Long[] a = { Long.valueOf(nums[0]), Long.valueOf(nums[1]) };
-                ranges.add(a);
+            List<ManifestRunner.JobStats> stats;
+            long start = System.nanoTime();
+            try {
+                stats = new ManifestRunner(Paths.get(commandLine.getOptionValue(optionManifest.getLongOpt())))
+                        .run(threads);
+            } catch (IOException | JSONException | InterruptedException e) {
+                e.printStackTrace();
+                System.exit(3);
+                return;
+            }
+            ManifestRunner.printStatistics(stats, System.nanoTime() - start, System.err);
+            for (ManifestRunner.JobStats s : stats) {
+                if (s.failure != null) System.exit(5);
             }
+            return;
         }
 
+        List<Long[]> ranges = commandLine.hasOption(optionApplyEndpoints.getLongOpt())
+                ? parseEndpoints(commandLine.getOptionValue(optionApplyEndpoints.getOpt())) : new LinkedList<>();
+
         Locator l;
         List<String> argsList = commandLine.getArgList();
 
@@ -87,139 +188,318 @@ public class Main {
                     commandLine.hasOption(optionRectification.getOpt()));
         } else if (argsList.size() > 0) {
             TopologyAnalyzer t = new TopologyAnalyzer();
-            AtomicBoolean isArray = new AtomicBoolean(false);
-            List<JSONObject> objects = new LinkedList<>();
-            try (Stream<String> stream = Files.lines(Paths.get(argsList.get(0)))) {
-                AtomicBoolean firstObject = new AtomicBoolean(false);
-                stream.forEach(line -> {
-                    try {
-                        if (Pattern.matches("^\\s*\\{.*", line)) {
-                            firstObject.set(true);
-                        } else if (Pattern.matches("^\\s*\\[", line)) {
-                            isArray.set(true);
-                        } else if (!isArray.get()) {
-                            System.err.printf("Skipping invalid line %s\n", line);
-                            return;
-                        }
+            int successes;
+            try {
+                successes = loadEnvironment(Paths.get(argsList.get(0)), t);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(3);
+                return;
+            }
 
-                        if (isArray.get()) return;
+            if (successes < 1) {
+                System.err.println("Environment graph JSON contains no valid elements.");
+                System.exit(4);
+                return;
+            } else if (!commandLine.hasOption(optionFile.getOpt()) && !commandLine.hasOption(optionListen.getLongOpt())
+                    && !commandLine.hasOption(optionHttp.getLongOpt())) {
+                System.out.printf("Successfully loaded %d links into environment graph\n", successes);
+            }
 
-                        objects.add(new JSONObject(line));
-                    } catch (JSONException e) {
-                        System.err.printf("Ignoring malformed line %s\n", line);
-                    }
-                });
+            l = new Locator(t, commandLine.hasOption(optionCheckpoints.getOpt()),
+                    commandLine.hasOption(optionRectification.getOpt()));
+
+        } else {
+            System.err.println("Specify either a JSON file describing the environment graph or the --example flag");
+            System.exit(2);
+            return;
+        }
+
+        l.setProvisionalEstimates(commandLine.hasOption(optionProvisional.getOpt()));
+        l.setCompactPackages(commandLine.hasOption(optionCompact.getLongOpt()));
+
+        if (commandLine.hasOption(optionMaxPendingAge.getLongOpt())) {
+            try {
+                l.setMaxPendingAge(Long.parseLong(commandLine.getOptionValue(optionMaxPendingAge.getLongOpt())));
+            } catch (IllegalArgumentException e) {
+                System.out.println("The maximum pending age has to be a positive integer");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+        }
+
+        if (commandLine.hasOption(optionUnordered.getLongOpt()) && !commandLine.hasOption(optionBaseline.getOpt())) {
+            System.out.println("The --unordered option requires --baseline");
+            printHelpMessage(formatter, options, 1);
+            return;
+        }
+
+        LocalizationStrategy strategy = l;
+        if (commandLine.hasOption(optionBaseline.getOpt())) {
+            if (commandLine.hasOption(optionAdaptive.getLongOpt())) {
+                System.out.println("The --adaptive option cannot be combined with --baseline");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+            strategy = new BaselineStrategy(l);
+        } else if (commandLine.hasOption(optionAdaptive.getLongOpt())) {
+            if (!commandLine.hasOption(optionListen.getLongOpt()) && !commandLine.hasOption(optionHttp.getLongOpt())) {
+                System.out.println("The --adaptive option requires the backlog of --listen or --http");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+            try {
+                int highWatermark = Integer.parseInt(commandLine.getOptionValue(optionAdaptive.getLongOpt()));
+                strategy = new AdaptiveStrategy(l, highWatermark, highWatermark / 2);
+            } catch (IllegalArgumentException e) {
+                System.out.println("The adaptive backlog threshold has to be a non-negative integer");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+        }
+        LocalizationStrategy localizationStrategy = strategy;
+
+        PrintStream out = System.out;
+        if (commandLine.hasOption(optionOutput.getOpt())) {
+            try {
+                // Only interactive input is flushed per package, the other modes flush when they end
+                out = openOutput(Paths.get(commandLine.getOptionValue(optionOutput.getOpt())),
+                        !commandLine.hasOption(optionFile.getOpt()) && !commandLine.hasOption(optionListen.getLongOpt())
+                        && !commandLine.hasOption(optionHttp.getLongOpt()));
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(3);
                 return;
             }
+        }
+        PrintStream output = out;
+        PackageSink sink = (p, compat) -> output.println(p.toJsonString(compat, ranges, l.topologyAnalyzer));
+
+        if (commandLine.hasOption(optionListen.getLongOpt())) {
+            if (commandLine.hasOption(optionFile.getOpt())) {
+                System.out.println("The --listen option cannot be combined with --file");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
 
-            if (isArray.get()) {
-                String fileContent;
+            InetSocketAddress address;
+            try {
+                address = parseListenAddress(commandLine.getOptionValue(optionListen.getLongOpt()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("The listen address has to be a port or HOST:PORT");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+
+            IngestServer server = new IngestServer(localizationStrategy, sink, IngestServer.DEFAULT_QUEUE_CAPACITY);
+            server.start(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
-                    File file = new File(argsList.get(0));
-                    FileInputStream fis = new FileInputStream(file);
-                    byte[] data = new byte[(int) file.length()];
-                    fis.read(data);
-                    fis.close();
-                    fileContent = new String(data);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    System.exit(3);
-                    return;
+                    server.close();
+                    server.awaitTermination();
+                } catch (IOException | InterruptedException e) {
+                    // Exiting anyway
                 }
+                closeOutput(output);
+                if (commandLine.hasOption(optionStats.getLongOpt())) {
+                    printStatistics(l);
+                    printAdaptiveStatistics(localizationStrategy);
+                }
+            }));
+            System.err.printf("Listening on %s:%d\n", address.getHostString(), server.getPort());
 
-                JSONArray fileArray = new JSONArray(fileContent);
-                for (Object o : fileArray) {
-                    if (!(o instanceof JSONObject)) {
-                        System.err.println("Array contains non-object data. Ignoring.");
-                        continue;
-                    }
+            try {
+                server.awaitTermination();
+            } catch (InterruptedException e) {
+                // Exiting
+            }
+            closeOutput(output);
+        } else if (commandLine.hasOption(optionHttp.getLongOpt())) {
+            if (commandLine.hasOption(optionFile.getOpt())) {
+                System.out.println("The --http option cannot be combined with --file");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
 
-                    objects.add((JSONObject)o);
+            InetSocketAddress address;
+            int maxBatch;
+            int maxRequests;
+            try {
+                address = parseListenAddress(commandLine.getOptionValue(optionHttp.getLongOpt()));
+                maxBatch = Integer.parseInt(commandLine.getOptionValue(optionHttpMaxBatch.getLongOpt(),
+                        String.valueOf(HttpIngestEndpoint.DEFAULT_MAX_BATCH_SIZE)));
+                maxRequests = Integer.parseInt(commandLine.getOptionValue(optionHttpMaxRequests.getLongOpt(),
+                        String.valueOf(HttpIngestEndpoint.DEFAULT_MAX_CONCURRENT_REQUESTS)));
+            } catch (IllegalArgumentException e) {
+                System.out.println("The HTTP address has to be a port or HOST:PORT and its limits positive integers");
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+
+            HttpIngestEndpoint endpoint;
+            try {
+                endpoint = new HttpIngestEndpoint(localizationStrategy,
+                        commandLine.hasOption(optionOutput.getOpt()) ? sink : null, l.topologyAnalyzer,
+                        ranges, maxBatch, maxRequests);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                printHelpMessage(formatter, options, 1);
+                return;
+            }
+            endpoint.start(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                endpoint.close();
+                closeOutput(output);
+                if (commandLine.hasOption(optionStats.getLongOpt())) {
+                    printStatistics(l);
+                    printAdaptiveStatistics(localizationStrategy);
                 }
+            }));
+            System.err.printf("Accepting packages on http://%s:%d%s\n", address.getHostString(), endpoint.getPort(),
+                    HttpIngestEndpoint.PATH);
+        } else if (commandLine.hasOption(optionFile.getOpt())) {
+            boolean follow = commandLine.hasOption(optionFollow.getLongOpt());
+            if (isGzip(Paths.get(commandLine.getOptionValue(optionFile.getOpt())))
+                    && (follow || commandLine.hasOption(optionOffsetFile.getLongOpt()))) {
+                System.out.println("Compressed package files cannot be used with --follow or --offsetFile");
+                printHelpMessage(formatter, options, 1);
+                return;
             }
 
-            Set<Long> relayIds = new HashSet<>();
-            int successes = 0;
-            for(JSONObject graphEdge : objects) {
+            if (commandLine.hasOption(optionTwoPass.getLongOpt())) {
+                if (!commandLine.hasOption(optionBaseline.getOpt()) || follow
+                        || commandLine.hasOption(optionOffsetFile.getLongOpt())
+                        || commandLine.hasOption(optionOffline.getLongOpt())) {
+                    System.out.println("The --twoPass option requires --baseline and cannot be combined with "
+                            + "--follow, --offsetFile or --offline");
+                    printHelpMessage(formatter, options, 1);
+                    return;
+                }
+
+                TwoPassLocalizer localizer = new TwoPassLocalizer(l.topologyAnalyzer, ranges);
                 try {
-                    long start = graphEdge.getLong("start");
-                    long destination = graphEdge.getLong("destination");
-                    float weight = graphEdge.getFloat("weight");
-                    Float startRadius = null;
-                    Float destRadius = null;
-
-                    if (graphEdge.has("startRadius")) {
-                        startRadius = graphEdge.getFloat("startRadius");
+                    localizer.run(Paths.get(commandLine.getOptionValue(optionFile.getOpt())), output);
+                    closeOutput(output);
+                    if (commandLine.hasOption(optionStats.getLongOpt())) {
+                        System.err.printf("Relay peak index: %d peaks\n", localizer.getPeakCount());
+                        printStatistics(l);
                     }
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(3);
+                }
+                return;
+            }
 
-                    if (graphEdge.has("destinationRadius")) {
-                        destRadius = graphEdge.getFloat("destinationRadius");
-                    }
+            if (commandLine.hasOption(optionOffline.getLongOpt())) {
+                if (follow || commandLine.hasOption(optionOffsetFile.getLongOpt())) {
+                    System.out.println("The --offline option cannot be combined with --follow or --offsetFile");
+                    printHelpMessage(formatter, options, 1);
+                    return;
+                }
 
-                    if (!relayIds.contains(start)) {
-                        if (startRadius != null) {
-                            t.addRelay(start, startRadius);
-                        } else {
-                            t.addRelay(start);
-                        }
-                        relayIds.add(start);
-                    }
-                    if (!relayIds.contains(destination)) {
-                        if (destRadius != null) {
-                            t.addRelay(destination, destRadius);
-                        } else {
-                            t.addRelay(destination);
-                        }
-                        relayIds.add(destination);
-                    }
-                    t.addEdge(start, destination, weight);
-                    successes++;
-                } catch (JSONException e) {
-                    System.err.printf("Object %s does not contain all necessary properties. Skipping.\n",
-                            graphEdge.toString());
+                if (commandLine.hasOption(optionCheckpoints.getOpt()) || commandLine.hasOption(optionRectification.getOpt())
+                        || commandLine.hasOption(optionMaxPendingAge.getLongOpt())) {
+                    // Checkpoints, path rectification and the event time of the maximum pending age relate the sensors
+                    // to each other
+                    System.out.println("The --offline option cannot be combined with -c, -r or --maxPendingAge");
+                    printHelpMessage(formatter, options, 1);
+                    return;
                 }
-            }
 
-            if (successes < 1) {
-                System.err.println("Environment graph JSON contains no valid elements.");
-                System.exit(4);
+                long sortMemory;
+                int threads;
+                try {
+                    sortMemory = commandLine.hasOption(optionSortMemory.getLongOpt())
+                            ? Long.parseLong(commandLine.getOptionValue(optionSortMemory.getLongOpt())) << 20
+                            : Runtime.getRuntime().maxMemory() / 4;
+                    threads = Integer.parseInt(commandLine.getOptionValue(optionThreads.getLongOpt(),
+                            String.valueOf(Runtime.getRuntime().availableProcessors())));
+                    if (sortMemory < 1 || threads < 1) throw new IllegalArgumentException();
+                } catch (IllegalArgumentException e) {
+                    System.out.println("The sort memory and the number of threads have to be positive integers");
+                    printHelpMessage(formatter, options, 1);
+                    return;
+                }
+
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                OfflineLocalizer localizer = new OfflineLocalizer(() -> {
+                    Locator sensorLocator = new Locator(l.topologyAnalyzer, false, false);
+                    sensorLocator.setProvisionalEstimates(commandLine.hasOption(optionProvisional.getOpt()));
+                    sensorLocator.setCompactPackages(commandLine.hasOption(optionCompact.getLongOpt()));
+                    return sensorLocator;
+                }, commandLine.hasOption(optionBaseline.getOpt()), ranges, sortMemory, pool);
+
+                try {
+                    localizer.run(Paths.get(commandLine.getOptionValue(optionFile.getOpt())), output);
+                    closeOutput(output);
+                    if (commandLine.hasOption(optionStats.getLongOpt())) {
+                        printStatistics(l);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(3);
+                } finally {
+                    pool.shutdown();
+                }
                 return;
-            } else if (!commandLine.hasOption(optionFile.getOpt())) {
-                System.out.printf("Successfully loaded %d links into environment graph\n", successes);
             }
 
-            l = new Locator(t, commandLine.hasOption(optionCheckpoints.getOpt()),
-                    commandLine.hasOption(optionRectification.getOpt()));
-
-        } else {
-            System.err.println("Specify either a JSON file describing the environment graph or the --example flag");
-            System.exit(2);
-            return;
-        }
+            int finishThreads = 1;
+            if (commandLine.hasOption(optionBaseline.getOpt())) {
+                try {
+                    finishThreads = Integer.parseInt(commandLine.getOptionValue(optionThreads.getLongOpt(),
+                            String.valueOf(Runtime.getRuntime().availableProcessors())));
+                    if (finishThreads < 1) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    System.out.println("The number of threads has to be a positive integer");
+                    printHelpMessage(formatter, options, 1);
+                    return;
+                }
+            }
 
+            PackageFileReader reader = new PackageFileReader(Paths.get(commandLine.getOptionValue(optionFile.getOpt())),
+                    commandLine.hasOption(optionOffsetFile.getLongOpt())
+                            ? Paths.get(commandLine.getOptionValue(optionOffsetFile.getLongOpt())) : null,
+                    line -> {
+                        try {
+                            parseJsonLine(line, localizationStrategy, sink);
+                        } catch (JSONException e) {
+                            System.err.printf("Ignoring malformed line %s\n", line);
+                        }
+                    });
+            // Output is flushed before an offset is persisted, so a restart never skips unwritten packages
+            reader.setCheckpointHandler(output::flush);
+            if (follow) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> closeOutput(output)));
+            }
 
-        if (commandLine.hasOption(optionFile.getOpt())) {
-            boolean compat = false;
-            try (Stream<String> stream = Files.lines(Paths.get(commandLine.getOptionValue(optionFile.getOpt())))) {
-                stream.forEach(line -> {
+            try {
+                reader.read(follow);
+                if (finishThreads > 1) {
+                    // The sensors behind their last relay peaks are independent of each other
+                    ForkJoinPool pool = new ForkJoinPool(finishThreads);
                     try {
-                        parseJsonLine(line, l, ranges, commandLine.hasOption(optionBaseline.getOpt()));
-                    } catch (JSONException e) {
-                        System.err.printf("Ignoring malformed line %s\n", line);
+                        ((BaselineStrategy)localizationStrategy).finish(pool,
+                                !commandLine.hasOption(optionUnordered.getLongOpt()), packages -> {
+                                    for (Package r : packages) {
+                                        sink.accept(r, false);
+                                    }
+                                });
+                    } finally {
+                        pool.shutdown();
                     }
-                });
-                if (commandLine.hasOption(optionBaseline.getOpt())) {
-                    for (Long k : l.sensors.keySet()) {
-                        List<Package> res = l.baseLineProcess(k);
-                        for (Package r : res) {
-                            System.out.println(r.toJsonString(false, ranges, l.topologyAnalyzer));
-                        }
+                } else {
+                    for (Package r : localizationStrategy.finish()) {
+                        sink.accept(r, false);
                     }
                 }
-            } catch (IOException e) {
+                closeOutput(output);
+                if (commandLine.hasOption(optionStats.getLongOpt())) {
+                    printStatistics(l);
+                    printAdaptiveStatistics(localizationStrategy);
+                }
+            } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
                 System.exit(3);
                 return;
@@ -231,7 +511,7 @@ public class Main {
             System.out.println("Example package: { \"deviceId\": 10, \"timestamp\": 50, \"contacts\": [{ \"deviceId\": 11, \"strength\": 0.7 }] }\n");
 
             if (commandLine.hasOption(optionBaseline.getOpt())) {
-                System.out.println("Press enter twice to get your evaluation");
+                System.out.println("Press enter twice to localize the packages behind the last relay peaks");
             }
 
             while (true) {
@@ -240,11 +520,8 @@ public class Main {
                 if (userInput.equals("") && commandLine.hasOption(optionBaseline.getOpt())) {
                     String more = reader.readLine();
                     if (more.equals("")) {
-                        for (Long k : l.sensors.keySet()) {
-                            List<Package> res = l.baseLineProcess(k);
-                            for (Package r : res) {
-                                System.out.println(r.toJsonString(compat, ranges, l.topologyAnalyzer));
-                            }
+                        for (Package r : localizationStrategy.finish()) {
+                            sink.accept(r, compat);
                         }
                         continue;
                     } else {
@@ -260,7 +537,7 @@ public class Main {
                     userInput += reader.readLine();
                 }
                 try {
-                    compat = parseJsonLine(userInput, l, ranges, commandLine.hasOption(optionBaseline.getOpt()));
+                    compat = parseJsonLine(userInput, localizationStrategy, sink);
                 } catch (JSONException e) {
                     System.err.println("Ignoring malformed line");
                 }
@@ -268,19 +545,145 @@ public class Main {
         }
     }
 
-    static boolean parseJsonLine(String line, Locator l, List<Long[]> pairs, boolean baseline) {
-        JSONObject obj = new JSONObject(line);
+    /**
+     * @param s Comma separated list of endpoint pairs, e.g. 1001-1003,1004-1003
+     * @return The endpoint pairs
+     */
+    static List<Long[]> parseEndpoints(String s) {
+        List<Long[]> ranges = new LinkedList<>();
+        String[] res = s.split(",");
+        for (String range : res) {
+            String[] nums = range.split("-");
+            Long[] a = { Long.valueOf(nums[0]), Long.valueOf(nums[1]) };
+            ranges.add(a);
+        }
+        return ranges;
+    }
 
-        JSONArray contacts;
-        boolean compat = false;
+    /**
+     * Adds the relays and links of an environment graph JSON file to a TopologyAnalyzer
+     * @param path The environment graph file, either one link object per line or an array of link objects
+     * @param t The analyzer to populate
+     * @return The number of links that have been added
+     * @throws IOException Thrown if the file cannot be read
+     */
+    static int loadEnvironment(Path path, TopologyAnalyzer t) throws IOException {
+        AtomicBoolean isArray = new AtomicBoolean(false);
+        List<JSONObject> objects = new LinkedList<>();
+        try (Stream<String> stream = lines(path)) {
+            AtomicBoolean firstObject = new AtomicBoolean(false);
+            stream.forEach(line -> {
+                try {
+                    if (Pattern.matches("^\\s*\\{.*", line)) {
+                        firstObject.set(true);
+                    } else if (Pattern.matches("^\\s*\\[", line)) {
+                        isArray.set(true);
+                    } else if (!isArray.get()) {
+                        System.err.printf("Skipping invalid line %s\n", line);
+                        return;
+                    }
 
-        try {
-            contacts = obj.getJSONArray("contacts");
-        } catch (JSONException e) {
-            compat = true;
-            contacts = obj.getJSONArray("value");
+                    if (isArray.get()) return;
+
+                    objects.add(new JSONObject(line));
+                } catch (JSONException e) {
+                    System.err.printf("Ignoring malformed line %s\n", line);
+                }
+            });
+        }
+
+        if (isArray.get()) {
+            String fileContent;
+            try (InputStream in = openInput(path)) {
+                fileContent = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+
+            JSONArray fileArray = new JSONArray(fileContent);
+            for (Object o : fileArray) {
+                if (!(o instanceof JSONObject)) {
+                    System.err.println("Array contains non-object data. Ignoring.");
+                    continue;
+                }
+
+                objects.add((JSONObject)o);
+            }
+        }
+
+        Set<Long> relayIds = new HashSet<>();
+        int successes = 0;
+        for(JSONObject graphEdge : objects) {
+            try {
+                long start = graphEdge.getLong("start");
+                long destination = graphEdge.getLong("destination");
+                float weight = graphEdge.getFloat("weight");
+                Float startRadius = null;
+                Float destRadius = null;
+
+                if (graphEdge.has("startRadius")) {
+                    startRadius = graphEdge.getFloat("startRadius");
+                }
+
+                if (graphEdge.has("destinationRadius")) {
+                    destRadius = graphEdge.getFloat("destinationRadius");
+                }
+
+                if (!relayIds.contains(start)) {
+                    if (startRadius != null) {
+                        t.addRelay(start, startRadius);
+                    } else {
+                        t.addRelay(start);
+                    }
+                    relayIds.add(start);
+                }
+                if (!relayIds.contains(destination)) {
+                    if (destRadius != null) {
+                        t.addRelay(destination, destRadius);
+                    } else {
+                        t.addRelay(destination);
+                    }
+                    relayIds.add(destination);
+                }
+                t.addEdge(start, destination, weight);
+                successes++;
+            } catch (JSONException e) {
+                System.err.printf("Object %s does not contain all necessary properties. Skipping.\n",
+                        graphEdge.toString());
+            }
+        }
+
+        return successes;
+    }
+
+    static boolean parseJsonLine(String line, LocalizationStrategy strategy, PackageSink sink) {
+        JSONObject obj = new JSONObject(line);
+        boolean compat = isCompat(obj);
+        Package p = parsePackage(obj);
+
+        for (Package r : strategy.feed(p)) {
+            sink.accept(r, compat);
         }
 
+        return compat;
+    }
+
+    /**
+     * @param obj A package JSON
+     * @return Whether the package uses the compat schema with id, time and value properties
+     */
+    static boolean isCompat(JSONObject obj) {
+        return obj.optJSONArray("contacts") == null;
+    }
+
+    /**
+     * Creates a package from its JSON representation in either schema
+     * @param obj A package JSON
+     * @return The package
+     * @throws JSONException Thrown if a required property is missing
+     */
+    static Package parsePackage(JSONObject obj) {
+        boolean compat = isCompat(obj);
+        JSONArray contacts = compat ? obj.getJSONArray("value") : obj.getJSONArray("contacts");
+
         long sid = 1L;
         try {
             sid = compat ? obj.getLong("id") : obj.getLong("deviceId");
@@ -306,17 +709,95 @@ public class Main {
             p = new Package(sid, compat ? obj.getLong("time") : obj.getLong("timestamp"));
         }
 
-        if (baseline) {
-            l.baseLineFeed(p);
-        } else {
-            List<Package> result = l.feed(p);
+        return p;
+    }
+
+    /**
+     * @param address A port or HOST:PORT
+     * @return The socket address, listening on all interfaces if no host is given
+     * @throws IllegalArgumentException Thrown if the port is invalid
+     */
+    static InetSocketAddress parseListenAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        int port = Integer.parseInt(address.substring(separator + 1));
+        return separator < 0 ? new InetSocketAddress(port) : new InetSocketAddress(address.substring(0, separator), port);
+    }
 
-            for (Package r : result) {
-                System.out.println(r.toJsonString(compat, pairs, l.topologyAnalyzer));
+    /**
+     * Opens a file for reading, decompressing it if its name ends with .gz
+     * @param path The file
+     * @return The stream of its content
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    static InputStream openInput(Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        return isGzip(path) ? new GZIPInputStream(in, PackageFileReader.BUFFER_SIZE) : new BufferedInputStream(in);
+    }
+
+    /**
+     * @param path A text file, possibly compressed
+     * @return A stream of its lines that closes the file when it is closed
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    static Stream<String> lines(Path path) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(openInput(path), StandardCharsets.UTF_8));
+        return reader.lines().onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        });
+    }
+
+    /**
+     * Opens a file for the output of localized packages, compressing it if its name ends with .gz
+     * @param path The file
+     * @param autoFlush Whether to flush after every package
+     * @return The output stream
+     * @throws IOException Thrown if the file cannot be opened
+     */
+    static PrintStream openOutput(Path path, boolean autoFlush) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        // Flushing a compressed stream emits the pending data, so checkpoints cover everything written before them
+        out = isGzip(path) ? new GZIPOutputStream(out, PackageFileReader.BUFFER_SIZE, true)
+                : new BufferedOutputStream(out, PackageFileReader.BUFFER_SIZE);
+        return new PrintStream(out, autoFlush, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finishes the output of localized packages. Files are closed, which writes the trailer of compressed files.
+     * @param out The output stream
+     */
+    static void closeOutput(PrintStream out) {
+        if (out == System.out) {
+            out.flush();
+        } else {
+            out.close();
         }
+    }
 
-        return compat;
+    static boolean isGzip(Path path) {
+        return path.getFileName().toString().endsWith(".gz");
+    }
+
+    static void printStatistics(Locator l) {
+        long hits = l.topologyAnalyzer.getConfluenceCacheHits();
+        long queries = hits + l.topologyAnalyzer.getConfluenceCacheMisses();
+        System.err.printf("Confluence cache: %d hits, %d queries (%.1f%% hit rate)\n", hits, queries,
+                queries > 0 ? 100.0 * hits / queries : 0.0);
+    }
+
+    /**
+     * Prints how often the adaptive strategy has switched sensors if it is used
+     * @param strategy The strategy of the run
+     */
+    static void printAdaptiveStatistics(LocalizationStrategy strategy) {
+        if (!(strategy instanceof AdaptiveStrategy)) return;
+
+        AdaptiveStrategy adaptive = (AdaptiveStrategy)strategy;
+        System.err.printf("Adaptive strategy: %d switches to the baseline, %d back to GRAL\n",
+                adaptive.getSwitchesToBaseline(), adaptive.getSwitchesToGral());
     }
 
     static void printHelpMessage(HelpFormatter formatter, Options options, int status) {
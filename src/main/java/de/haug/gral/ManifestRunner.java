@@ -0,0 +1,203 @@
+package de.haug.gral;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the localization jobs of several deployments concurrently in one JVM.
+ * A manifest is a JSON array of jobs. Each job names its environment graph, package file and output file and may set
+ * the options checkpoints, pathRectification, baseline, provisional, compact, maxPendingAge and endpoints like the
+ * eponymous command line options. Relative paths are resolved against the directory of the manifest.
+ * Every job gets its own TopologyAnalyzer and Locator and runs on one thread of a shared pool.
+ */
+class ManifestRunner {
+    /**
+     * A job of the manifest
+     */
+    static class Job {
+        final String name;
+        final Path topology;
+        final Path input;
+        final Path output;
+        final JSONObject options;
+
+        Job(String name, Path topology, Path input, Path output, JSONObject options) {
+            this.name = name;
+            this.topology = topology;
+            this.input = input;
+            this.output = output;
+            this.options = options;
+        }
+    }
+
+    /**
+     * Throughput statistics of a finished job
+     */
+    static class JobStats {
+        final Job job;
+        long packages = 0;
+        long localized = 0;
+        long nanos = 0;
+        Throwable failure;
+
+        JobStats(Job job) {
+            this.job = job;
+        }
+
+        /**
+         * @return The number of fed packages per second
+         */
+        double getThroughput() {
+            return nanos > 0 ? packages * 1e9 / nanos : 0;
+        }
+    }
+
+    private final List<Job> jobs;
+
+    /**
+     * Constructs a runner for the jobs of a manifest
+     * @param manifest The manifest file
+     * @throws IOException Thrown if the manifest cannot be read
+     * @throws JSONException Thrown if the manifest is not an array of jobs with topology, input and output
+     */
+    ManifestRunner(Path manifest) throws IOException {
+        String content;
+        try (InputStream in = Main.openInput(manifest)) {
+            content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        Path directory = manifest.toAbsolutePath().getParent();
+        JSONArray array = new JSONArray(content);
+        jobs = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject obj = array.getJSONObject(i);
+            jobs.add(new Job(obj.optString("name", "job" + i),
+                    directory.resolve(obj.getString("topology")),
+                    directory.resolve(obj.getString("input")),
+                    directory.resolve(obj.getString("output")),
+                    obj));
+        }
+    }
+
+    /**
+     * Runs all jobs and waits for them to finish. Failing jobs do not affect the others.
+     * @param threads Number of jobs to run at the same time
+     * @return The statistics of the jobs in manifest order
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting for the jobs
+     */
+    List<JobStats> run(int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, jobs.size())));
+        List<Future<JobStats>> futures = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            futures.add(pool.submit(() -> runJob(job)));
+        }
+        pool.shutdown();
+
+        List<JobStats> stats = new ArrayList<>(jobs.size());
+        for (Future<JobStats> future : futures) {
+            try {
+                stats.add(future.get());
+            } catch (ExecutionException e) {
+                // runJob records its failures in the statistics
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Localizes the packages of a job. Any failure, including an error writing the output, is recorded in the statistics.
+     * @param job The job
+     * @return The statistics of the job
+     */
+    static JobStats runJob(Job job) {
+        JobStats stats = new JobStats(job);
+        long start = System.nanoTime();
+
+        try {
+            TopologyAnalyzer t = new TopologyAnalyzer();
+            if (Main.loadEnvironment(job.topology, t) < 1) {
+                throw new IllegalArgumentException("Environment graph JSON contains no valid elements");
+            }
+
+            JSONObject options = job.options;
+            Locator l = new Locator(t, options.optBoolean("checkpoints"), options.optBoolean("pathRectification"));
+            l.setProvisionalEstimates(options.optBoolean("provisional"));
+            l.setCompactPackages(options.optBoolean("compact"));
+            if (options.has("maxPendingAge")) {
+                l.setMaxPendingAge(options.getLong("maxPendingAge"));
+            }
+            LocalizationStrategy strategy = options.optBoolean("baseline") ? new BaselineStrategy(l) : l;
+            List<Long[]> ranges = options.has("endpoints")
+                    ? Main.parseEndpoints(options.getString("endpoints")) : new LinkedList<>();
+
+            PrintStream out = Main.openOutput(job.output, false);
+            try {
+                PackageSink sink = (p, compat) -> {
+                    out.println(p.toJsonString(compat, ranges, l.topologyAnalyzer));
+                    stats.localized++;
+                };
+
+                new PackageFileReader(job.input, null, line -> {
+                    try {
+                        Main.parseJsonLine(line, strategy, sink);
+                        stats.packages++;
+                    } catch (JSONException e) {
+                        System.err.printf("%s: Ignoring malformed line %s\n", job.name, line);
+                    }
+                }).read(false);
+
+                for (Package r : strategy.finish()) {
+                    sink.accept(r, false);
+                }
+            } finally {
+                Main.closeOutput(out);
+            }
+            // PrintStream swallows write errors, e.g. of a full disk
+            if (out.checkError()) throw new IOException("Could not write " + job.output);
+        } catch (Throwable e) {
+            // Errors such as a stack overflow in one job must not abort the others either
+            stats.failure = e;
+        }
+
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /**
+     * Prints the statistics of all jobs and their total
+     * @param stats The job statistics
+     * @param nanos Wall clock time of all jobs
+     * @param out The stream to print to
+     */
+    static void printStatistics(List<JobStats> stats, long nanos, PrintStream out) {
+        long packages = 0;
+        long localized = 0;
+        for (JobStats s : stats) {
+            if (s.failure != null) {
+                out.printf("%s: failed after %d packages: %s\n", s.job.name, s.packages, s.failure);
+            } else {
+                out.printf("%s: %d packages, %d localized in %.2f s (%.0f packages/s)\n", s.job.name, s.packages,
+                        s.localized, s.nanos / 1e9, s.getThroughput());
+            }
+            packages += s.packages;
+            localized += s.localized;
+        }
+        out.printf("Total: %d packages, %d localized in %.2f s (%.0f packages/s)\n", packages, localized, nanos / 1e9,
+                nanos > 0 ? packages * 1e9 / nanos : 0.0);
+    }
+}
@@ -0,0 +1,187 @@
+package de.haug.gral;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Localizes a complete package file by sorting it by sensor and localizing the sensors in parallel.
+ * Without checkpoints and path rectification the packages of a sensor only depend on each other and on the strongest
+ * relay signal seen so far, which is recorded for every package while the file is read.
+ * The packages are then sorted by sensor and file position with an external merge sort, and every sensor is
+ * localized on its own locator. Each localized package is tagged with the file position of the package whose feed
+ * returned it, so the output is merged back into the order of the streaming localization.
+ * Locators with checkpoints, path rectification or a maximum pending age are not supported.
+ */
+class OfflineLocalizer {
+    private final Supplier<Locator> locatorFactory;
+    private final boolean baseline;
+    private final List<Long[]> applyPairs;
+    private final long memoryBudget;
+    private final ForkJoinPool pool;
+
+    /**
+     * Number of valid packages in the file
+     */
+    private long packageCount = 0;
+
+    /**
+     * Constructs a new offline localizer
+     * @param locatorFactory Creates a configured locator without checkpoints, path rectification and maximum pending
+     *                       age per sensor
+     * @param baseline Whether to use the baseline algorithm
+     * @param applyPairs Endpoint pairs applied to the output positions
+     * @param memoryBudget Approximate number of bytes each of the input and output sort may keep in memory
+     * @param pool The pool to localize the sensors on
+     */
+    OfflineLocalizer(Supplier<Locator> locatorFactory, boolean baseline, List<Long[]> applyPairs, long memoryBudget,
+                     ForkJoinPool pool) {
+        this.locatorFactory = locatorFactory;
+        this.baseline = baseline;
+        this.applyPairs = applyPairs;
+        this.memoryBudget = memoryBudget;
+        this.pool = pool;
+    }
+
+    /**
+     * Localizes all packages of a file and writes the results in the order of the streaming localization
+     * @param input The package file
+     * @param out The output stream
+     * @throws IOException Thrown if the file or a temporary file cannot be read or written
+     * @throws InterruptedException Thrown if the thread is interrupted
+     */
+    void run(Path input, PrintStream out) throws IOException, InterruptedException {
+        try (ExternalSorter packages = new ExternalSorter(memoryBudget);
+             ExternalSorter results = new ExternalSorter(memoryBudget)) {
+            Map<Long, Long> firstPositions = readPackages(input, packages);
+            localizeSensors(packages.sorted(), firstPositions, results);
+
+            for (Iterator<ExternalSorter.Record> it = results.sorted(); it.hasNext(); ) {
+                out.println(it.next().payload);
+            }
+        }
+    }
+
+    /**
+     * Adds every valid line of the file to the sorter, keyed by its sensor and file position and prefixed with the
+     * strongest relay signal seen up to and including it
+     * @return The file position of the first package of every sensor
+     */
+    private Map<Long, Long> readPackages(Path input, ExternalSorter packages) throws IOException, InterruptedException {
+        Map<Long, Long> firstPositions = new HashMap<>();
+        long[] position = { 0 };
+        float[] maxSignal = { 0 };
+
+        try {
+            new PackageFileReader(input, null, line -> {
+                Package p;
+                try {
+                    p = Main.parsePackage(new JSONObject(line));
+                } catch (JSONException e) {
+                    System.err.printf("Ignoring malformed line %s\n", line);
+                    return;
+                }
+
+                for (WirelessContact w : p.contacts) {
+                    if (!Node.isSensor(w.getNodeId())) maxSignal[0] = Math.max(maxSignal[0], w.getStrength());
+                }
+                firstPositions.putIfAbsent(p.getSensorId(), position[0]);
+                try {
+                    packages.add(p.getSensorId(), position[0]++, maxSignal[0] + " " + line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).read(false);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        packageCount = position[0];
+        return firstPositions;
+    }
+
+    /**
+     * Localizes the sensors of the sorted packages in parallel. The number of sensors that are read ahead of the
+     * localization is bounded, so the packages of only a few sensors are kept in memory.
+     */
+    private void localizeSensors(Iterator<ExternalSorter.Record> sorted, Map<Long, Long> firstPositions,
+                                 ExternalSorter results) throws IOException, InterruptedException {
+        Semaphore pending = new Semaphore(2 * pool.getParallelism());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+        List<ExternalSorter.Record> sensorPackages = new ArrayList<>();
+        while (sorted.hasNext() || !sensorPackages.isEmpty()) {
+            ExternalSorter.Record next = sorted.hasNext() ? sorted.next() : null;
+            if (!sensorPackages.isEmpty() && (next == null || next.key != sensorPackages.get(0).key)) {
+                List<ExternalSorter.Record> records = sensorPackages;
+                long sensorId = records.get(0).key;
+                pending.acquire();
+                tasks.add(pool.submit(() -> {
+                    try {
+                        localizeSensor(sensorId, records, firstPositions.get(sensorId), results);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        pending.release();
+                    }
+                }));
+                sensorPackages = new ArrayList<>();
+            }
+            if (next != null) sensorPackages.add(next);
+        }
+
+        // Wait for all sensors before failing, so no task adds results after the sorters are closed
+        Throwable failure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+            }
+        }
+
+        if (failure instanceof UncheckedIOException) throw ((UncheckedIOException)failure).getCause();
+        if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+        if (failure != null) throw new RuntimeException(failure);
+    }
+
+    /**
+     * Feeds the packages of a sensor into a new locator and adds the localized packages to the results
+     */
+    private void localizeSensor(long sensorId, List<ExternalSorter.Record> records, long firstPosition,
+                                ExternalSorter results) throws IOException {
+        Locator l = locatorFactory.get();
+        LocalizationStrategy strategy = baseline ? new BaselineStrategy(l) : l;
+        long order = 0;
+
+        for (ExternalSorter.Record record : records) {
+            int separator = record.payload.indexOf(' ');
+            JSONObject obj = new JSONObject(record.payload.substring(separator + 1));
+            Package p = Main.parsePackage(obj);
+
+            l.raiseMaxSignal(Float.parseFloat(record.payload.substring(0, separator)));
+            boolean compat = Main.isCompat(obj);
+            for (Package r : strategy.feed(p)) {
+                results.add(record.order, order++, r.toJsonString(compat, applyPairs, l.topologyAnalyzer));
+            }
+        }
+
+        // At the end of the input the streaming localization finishes the sensors in the order of their first package
+        for (Package r : strategy.finish()) {
+            results.add(packageCount + firstPosition, order++, r.toJsonString(false, applyPairs, l.topologyAnalyzer));
+        }
+    }
+}
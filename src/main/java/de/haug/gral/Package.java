@@ -2,7 +2,6 @@ package de.haug.gral;
 
 import java.io.Serializable;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -30,6 +29,21 @@ public class Package implements Serializable {
      */
     Position position = null;
 
+    /**
+     * Whether the position is a provisional estimate that will be revised later
+     */
+    private boolean provisional = false;
+
+    /**
+     * Number of times the position has been revised after a provisional estimate
+     */
+    private int revision = 0;
+
+    /**
+     * Whether the package has been localized with low confidence because it was pending for too long
+     */
+    private boolean forced = false;
+
     /**
      * Creates a new package with a sensorId and a timestamp
      * @param sensorId The sensor which has registered the package
@@ -90,6 +104,56 @@ public class Package implements Serializable {
         this.position = position;
     }
 
+    /**
+     * Sets a provisional position that will be revised once the package is localized.
+     * @param position Estimated position at which this package was registered
+     */
+    void setProvisionalPosition(Position position) {
+        this.position = position;
+        this.provisional = true;
+    }
+
+    /**
+     * Marks the position as final, counting a revision if a provisional position was emitted before.
+     */
+    void markFinal() {
+        if (provisional) {
+            provisional = false;
+            revision++;
+        }
+    }
+
+    /**
+     * Marks the package as localized with low confidence because it was pending for too long.
+     */
+    void markForced() {
+        this.forced = true;
+    }
+
+    /**
+     * @return Whether the package has been localized with low confidence because it was pending for too long
+     */
+    @SuppressWarnings("WeakerAccess")
+    public boolean isForced() {
+        return forced;
+    }
+
+    /**
+     * @return Whether the position is a provisional estimate that will be revised later
+     */
+    @SuppressWarnings("WeakerAccess")
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    /**
+     * @return Number of times the position has been revised after a provisional estimate
+     */
+    @SuppressWarnings("WeakerAccess")
+    public int getRevision() {
+        return revision;
+    }
+
     /**
      * @return The time at which this package was registered
      */
@@ -117,8 +181,24 @@ public class Package implements Serializable {
      */
     public String toJsonString() {
         String positionString = position != null ? position.toJsonString() : "null";
-        return String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": %s, \"position\": %s }",
-                getSensorId(), getTimestamp(), WirelessContact.contactListJsonString(contacts), positionString);
+        return String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": %s, \"position\": %s%s }",
+                getSensorId(), getTimestamp(), WirelessContact.contactListJsonString(contacts), positionString,
+                revisionJsonString());
+    }
+
+    /**
+     * @return The JSON properties describing the revision and confidence state or an empty string
+     * if the position was never provisional or forced
+     */
+    private String revisionJsonString() {
+        String json = "";
+        if (provisional || revision > 0) {
+            json += String.format(", \"provisional\": %b, \"revision\": %d", provisional, revision);
+        }
+        if (forced) {
+            json += ", \"forced\": true";
+        }
+        return json;
     }
 
     /**
@@ -139,11 +219,12 @@ public class Package implements Serializable {
             }
         }
         if (compat) {
-            return String.format("{ \"id\": %d, \"time\": %d, \"estimated_position\": %s }",
-                    getSensorId(), getTimestamp(), positionString);
+            return String.format("{ \"id\": %d, \"time\": %d, \"estimated_position\": %s%s }",
+                    getSensorId(), getTimestamp(), positionString, revisionJsonString());
         } else {
-            return String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": %s, \"position\": %s }",
-                    getSensorId(), getTimestamp(), WirelessContact.contactListJsonString(contacts), positionString);
+            return String.format("{ \"deviceId\": %d, \"timestamp\": %d, \"contacts\": %s, \"position\": %s%s }",
+                    getSensorId(), getTimestamp(), WirelessContact.contactListJsonString(contacts), positionString,
+                    revisionJsonString());
         }
     }
 
@@ -151,8 +232,13 @@ public class Package implements Serializable {
      * @return The strongest relay contact in the package
      */
     WirelessContact getStrongestRelay() {
-        LinkedList<WirelessContact> detectedRelays = new LinkedList<>(this.contacts);
-        detectedRelays.removeIf(c -> Node.isSensor(c.getNodeId()));
-        return WirelessContact.getStrongestSignal(detectedRelays);
+        WirelessContact max = null;
+        for (WirelessContact c : contacts) {
+            if (Node.isSensor(c.getNodeId())) continue;
+            if (max == null || max.getStrength() < c.getStrength()) {
+                max = c;
+            }
+        }
+        return max;
     }
 }
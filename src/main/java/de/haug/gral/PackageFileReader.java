@@ -0,0 +1,324 @@
+package de.haug.gral;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Reads a package file line by line through a FileChannel with a large buffer.
+ * In follow mode the reader keeps waiting for new lines once it reaches the end of the file, like tail -F. It detects
+ * a rotated file by its changed file key and a truncated file by its shrunk size and then continues at the start of
+ * the new file.
+ * If an offset file is set, the byte offset behind the last handled line is written to it after every chunk
+ * together with the file key, so a restarted reader resumes behind that line instead of reading the file again.
+ * Files ending with .gz are decompressed on a separate thread while the lines of the previous chunks are handled.
+ * They can neither be followed nor resumed.
+ */
+class PackageFileReader {
+    /**
+     * Size of the read buffer
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Time to wait for new data at the end of a followed file in milliseconds
+     */
+    static final long POLL_INTERVAL = 200;
+
+    /**
+     * Number of chunks a compressed file is decompressed into ahead of handling them
+     */
+    private static final int COMPRESSED_CHUNKS = 4;
+
+    private final Path file;
+    private final Path offsetFile;
+    private final Consumer<String> lineHandler;
+    private Runnable checkpointHandler = () -> { };
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Bytes of the line that has not been terminated yet
+     */
+    private byte[] partial = new byte[256];
+    private int partialLength = 0;
+
+    /**
+     * Byte offset behind the last handled line
+     */
+    private long offset = 0;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructs a new reader
+     * @param file The package file
+     * @param offsetFile File to persist the offset in or null to always read from the start
+     * @param lineHandler Handler for every line of the file, without the line terminator
+     */
+    PackageFileReader(Path file, Path offsetFile, Consumer<String> lineHandler) {
+        this.file = file;
+        this.offsetFile = offsetFile;
+        this.lineHandler = lineHandler;
+    }
+
+    /**
+     * Sets a handler that runs before an offset is persisted, e.g. to flush the output of the handled lines
+     * @param checkpointHandler The handler
+     */
+    void setCheckpointHandler(Runnable checkpointHandler) {
+        this.checkpointHandler = checkpointHandler;
+    }
+
+    /**
+     * Makes a following reader return once it reaches the end of the file the next time
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Reads the file, resuming at the persisted offset if there is one
+     * @param follow Whether to keep reading new lines at the end of the file until stop is called
+     * @throws IOException Thrown if the file cannot be read
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting for new data
+     */
+    void read(boolean follow) throws IOException, InterruptedException {
+        if (Main.isGzip(file)) {
+            if (follow || offsetFile != null)
+                throw new IllegalArgumentException("Compressed package files can neither be followed nor resumed");
+            readCompressed();
+            return;
+        }
+
+        String key = fileKey();
+        long start = readOffset(key);
+
+        while (true) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(start);
+                offset = start;
+                partialLength = 0;
+
+                readToEnd(channel, key);
+                if (!follow) {
+                    handleUnterminatedLine(key);
+                    return;
+                }
+
+                // Wait until the file grows, is rotated or truncated
+                while (true) {
+                    if (stopped) return;
+                    Thread.sleep(POLL_INTERVAL);
+                    readToEnd(channel, key);
+
+                    String currentKey;
+                    long size;
+                    try {
+                        currentKey = fileKey();
+                        size = Files.size(file);
+                    } catch (NoSuchFileException e) {
+                        // The file has been moved away and not been recreated yet
+                        continue;
+                    }
+
+                    if (!currentKey.equals(key)) {
+                        // Rotated: the old file will not be written to anymore
+                        handleUnterminatedLine(key);
+                        key = currentKey;
+                        break;
+                    } else if (size < channel.position()) {
+                        // Truncated in place
+                        break;
+                    }
+                }
+                start = 0;
+            }
+        }
+    }
+
+    /**
+     * Handles the lines of a compressed file. A decompression thread fills a small pool of chunks
+     * that are handed back and forth with the reading thread.
+     */
+    private void readCompressed() throws IOException, InterruptedException {
+        BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(COMPRESSED_CHUNKS + 1);
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(COMPRESSED_CHUNKS);
+        for (int i = 0; i < COMPRESSED_CHUNKS; i++) {
+            free.add(new Chunk());
+        }
+
+        IOException[] failure = { null };
+        Thread decompressor = new Thread(() -> {
+            try (InputStream in = Main.openInput(file)) {
+                while (true) {
+                    Chunk chunk = free.take();
+                    chunk.length = in.readNBytes(chunk.bytes, 0, chunk.bytes.length);
+                    filled.put(chunk);
+                    if (chunk.length == 0) return;
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                // Reading has been aborted
+                return;
+            }
+            filled.add(Chunk.END);
+        }, "gral-decompress");
+        decompressor.setDaemon(true);
+        decompressor.start();
+
+        offset = 0;
+        partialLength = 0;
+        try {
+            while (true) {
+                Chunk chunk = filled.take();
+                if (chunk.length == 0) break;
+                handleLines(chunk.bytes, chunk.length);
+                free.put(chunk);
+                checkpointHandler.run();
+            }
+        } finally {
+            decompressor.interrupt();
+        }
+        decompressor.join();
+
+        if (failure[0] != null) throw failure[0];
+        handleUnterminatedLine(null);
+    }
+
+    /**
+     * Decompressed part of a file
+     */
+    private static class Chunk {
+        /**
+         * Chunk that ends the file after a failure
+         */
+        static final Chunk END = new Chunk(0);
+
+        final byte[] bytes;
+        int length;
+
+        Chunk() {
+            this(BUFFER_SIZE);
+        }
+
+        Chunk(int size) {
+            bytes = new byte[size];
+        }
+    }
+
+    /**
+     * Handles all lines up to the current end of the channel
+     */
+    private void readToEnd(FileChannel channel, String key) throws IOException {
+        while (channel.read(buffer) > 0) {
+            buffer.flip();
+            handleLines(buffer.array(), buffer.limit());
+            buffer.clear();
+            checkpoint(key);
+        }
+    }
+
+    /**
+     * Splits the bytes of a chunk into lines and hands them to the line handler, keeping the unterminated rest
+     */
+    private void handleLines(byte[] bytes, int length) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != '\n') continue;
+
+            String line;
+            offset += partialLength + i + 1 - lineStart;
+            if (partialLength > 0) {
+                appendPartial(bytes, lineStart, i - lineStart);
+                line = decode(partial, 0, partialLength);
+                partialLength = 0;
+            } else {
+                line = decode(bytes, lineStart, i - lineStart);
+            }
+            lineStart = i + 1;
+            lineHandler.accept(line);
+        }
+        appendPartial(bytes, lineStart, length - lineStart);
+    }
+
+    /**
+     * Handles the last line of a file that has no line terminator
+     */
+    private void handleUnterminatedLine(String key) throws IOException {
+        if (partialLength == 0) return;
+
+        String line = decode(partial, 0, partialLength);
+        offset += partialLength;
+        partialLength = 0;
+        lineHandler.accept(line);
+        checkpoint(key);
+    }
+
+    private void appendPartial(byte[] bytes, int start, int length) {
+        if (partialLength + length > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(bytes, start, partial, partialLength, length);
+        partialLength += length;
+    }
+
+    /**
+     * Decodes a line, dropping the carriage return of CRLF terminated lines
+     */
+    private static String decode(byte[] bytes, int start, int length) {
+        if (length > 0 && bytes[start + length - 1] == '\r') length--;
+        return new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return An identifier of the file that stays the same while it is appended to or truncated
+     */
+    private String fileKey() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return String.valueOf(key != null ? key : attributes.creationTime()).replace(' ', '_');
+    }
+
+    /**
+     * @param key The key of the file that is read now
+     * @return The persisted offset if it belongs to that file, 0 otherwise
+     */
+    private long readOffset(String key) throws IOException {
+        if (offsetFile == null || !Files.exists(offsetFile)) return 0;
+
+        String[] content = Files.readString(offsetFile).trim().split(" ");
+        try {
+            long persisted = Long.parseLong(content[0]);
+            if (content.length > 1 && content[1].equals(key) && persisted <= Files.size(file)) return persisted;
+        } catch (NumberFormatException e) {
+            System.err.printf("Ignoring malformed offset file %s\n", offsetFile);
+        }
+        return 0;
+    }
+
+    /**
+     * Persists the offset behind the last handled line
+     */
+    private void checkpoint(String key) throws IOException {
+        checkpointHandler.run();
+        if (offsetFile == null) return;
+
+        Path temp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        Files.writeString(temp, offset + " " + key + "\n");
+        Files.move(temp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,250 @@
+package de.haug.gral;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Package list of an epoch. If compaction is enabled, packages without contacts and any other state are stored as
+ * a timestamp offset only and recreated when they are read.
+ * Positions set through setPositions are only stored as a uniform motion. The position of a package is calculated
+ * from it when the package is read, so recalculations of the epoch do not allocate a position per package.
+ * The latest package is always kept as it is, since it may still be modified after it has been added.
+ */
+class PackageList extends AbstractList<Package> implements RandomAccess, Serializable {
+    /**
+     * Whether plain packages are stored compactly
+     */
+    private boolean compaction = false;
+
+    /**
+     * Sensor id and timestamp of the first added package, compact packages are stored relative to these
+     */
+    private long sensorId;
+    private long baseTimestamp;
+
+    /**
+     * Timestamp offsets of compact packages relative to baseTimestamp
+     */
+    private int[] offsets = new int[8];
+
+    /**
+     * Package objects that are stored as they are, null for compact packages
+     */
+    private Package[] stored = new Package[8];
+
+    private int size = 0;
+
+    /**
+     * Whether the uniform position applies to a package and if it has been set on the stored package object yet
+     */
+    private byte[] positionStates = new byte[8];
+
+    private static final byte UNPOSITIONED = 0;
+    private static final byte POSITION_PENDING = 1;
+    private static final byte POSITION_SET = 2;
+
+    private Position uniformStart;
+    private long uniformStartTime;
+    private double uniformSpeed;
+
+    /**
+     * Whether all positioned packages share uniformStart instead of moving from it at uniformSpeed
+     */
+    private boolean uniformConstant;
+
+    /**
+     * @param compaction Whether plain packages that are added from now on shall be stored compactly
+     */
+    void setCompaction(boolean compaction) {
+        this.compaction = compaction;
+    }
+
+    /**
+     * @return Whether plain packages are stored compactly
+     */
+    boolean isCompaction() {
+        return compaction;
+    }
+
+    @Override
+    public Package get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        Package p = stored[index];
+        if (p == null) {
+            p = new Package(sensorId, baseTimestamp + offsets[index]);
+            if (positionStates[index] != UNPOSITIONED) p.setPosition(positionAt(p.getTimestamp()));
+        } else if (positionStates[index] == POSITION_PENDING) {
+            p.setPosition(positionAt(p.getTimestamp()));
+            positionStates[index] = POSITION_SET;
+        }
+        return p;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Package set(int index, Package p) {
+        Package previous = get(index);
+        stored[index] = p;
+        positionStates[index] = UNPOSITIONED;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Package p) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        if (p == null) throw new NullPointerException("Packages cannot be null");
+
+        if (size == 0) {
+            sensorId = p.getSensorId();
+            baseTimestamp = p.getTimestamp();
+        } else if (index == size && isCompactable(stored[size - 1])) {
+            // The previous latest package cannot be modified anymore
+            offsets[size - 1] = (int)(stored[size - 1].getTimestamp() - baseTimestamp);
+            stored[size - 1] = null;
+        }
+
+        if (size == stored.length) {
+            stored = Arrays.copyOf(stored, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            positionStates = Arrays.copyOf(positionStates, size * 2);
+        }
+        System.arraycopy(stored, index, stored, index + 1, size - index);
+        System.arraycopy(offsets, index, offsets, index + 1, size - index);
+        System.arraycopy(positionStates, index, positionStates, index + 1, size - index);
+        stored[index] = p;
+        positionStates[index] = UNPOSITIONED;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        // Packages are compared by identity, so recreated compact packages never match
+        return o instanceof Package ? indexOfStored((Package)o) : -1;
+    }
+
+    @Override
+    public Package remove(int index) {
+        Package p = get(index);
+        removeRange(index, index + 1);
+        return p;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        System.arraycopy(stored, toIndex, stored, fromIndex, size - toIndex);
+        System.arraycopy(offsets, toIndex, offsets, fromIndex, size - toIndex);
+        System.arraycopy(positionStates, toIndex, positionStates, fromIndex, size - toIndex);
+        Arrays.fill(stored, size - (toIndex - fromIndex), size, null);
+
+        size -= toIndex - fromIndex;
+        modCount++;
+    }
+
+    /**
+     * Sets the positions of all packages such that they move from a starting position at a constant speed
+     * @param start Position at startTime
+     * @param startTime Time at which the motion starts
+     * @param speed Distance travelled during a tick
+     */
+    void setPositions(Position start, long startTime, double speed) {
+        uniformStart = start;
+        uniformStartTime = startTime;
+        uniformSpeed = speed;
+        uniformConstant = false;
+        applyUniformPosition();
+    }
+
+    /**
+     * Sets the positions of all packages to the same position
+     * @param position The new position
+     */
+    void setPositions(Position position) {
+        uniformStart = position;
+        uniformConstant = true;
+        applyUniformPosition();
+    }
+
+    /**
+     * Returns the position of a package of the list, calculating it if it has not been set yet
+     * @param p A package of the list
+     * @return The position of p
+     */
+    Position positionOf(Package p) {
+        int index = indexOfStored(p);
+        if (index >= 0) get(index);
+        return p.position;
+    }
+
+    /**
+     * Marks all packages as positioned by the uniform position
+     */
+    private void applyUniformPosition() {
+        Arrays.fill(positionStates, 0, size, POSITION_PENDING);
+    }
+
+    /**
+     * Finds a stored package by identity, using binary search on the timestamps first since the list is ordered
+     * @param p The package to look for
+     * @return Its index or -1 if it is not stored in the list
+     */
+    private int indexOfStored(Package p) {
+        long timestamp = p.getTimestamp();
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTimestamp = timestampAt(mid);
+            if (midTimestamp < timestamp) {
+                low = mid + 1;
+            } else if (midTimestamp > timestamp) {
+                high = mid - 1;
+            } else {
+                for (int i = mid; i >= 0 && timestampAt(i) == timestamp; i--) {
+                    if (stored[i] == p) return i;
+                }
+                for (int i = mid + 1; i < size && timestampAt(i) == timestamp; i++) {
+                    if (stored[i] == p) return i;
+                }
+                break;
+            }
+        }
+
+        // Fall back to a linear search in case packages were added out of order
+        for (int i = 0; i < size; i++) {
+            if (stored[i] == p) return i;
+        }
+        return -1;
+    }
+
+    private long timestampAt(int index) {
+        return stored[index] != null ? stored[index].getTimestamp() : baseTimestamp + offsets[index];
+    }
+
+    private Position positionAt(long timestamp) {
+        if (uniformConstant) return uniformStart;
+
+        return new Position(uniformStart.getStart(), uniformStart.getDest(),
+                (float)(uniformStart.getPositionInBetween() + (timestamp - uniformStartTime) * uniformSpeed),
+                uniformStart.getTotalDistance());
+    }
+
+    /**
+     * @param p A stored package
+     * @return Whether p can be recreated from its sensor id and timestamp alone
+     */
+    private boolean isCompactable(Package p) {
+        if (!compaction || p == null || p.getClass() != Package.class) return false;
+
+        long offset = p.getTimestamp() - baseTimestamp;
+        return p.getSensorId() == sensorId && offset >= Integer.MIN_VALUE && offset <= Integer.MAX_VALUE
+                && p.contacts.isEmpty() && p.position == null && !p.isProvisional() && p.getRevision() == 0
+                && !p.isForced();
+    }
+}
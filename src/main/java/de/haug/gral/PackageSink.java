@@ -0,0 +1,13 @@
+package de.haug.gral;
+
+/**
+ * Destination of localized packages
+ */
+interface PackageSink {
+    /**
+     * Writes a localized package
+     * @param p The package
+     * @param compat Whether the package has been received in the compat schema and shall be written in it
+     */
+    void accept(Package p, boolean compat);
+}
@@ -0,0 +1,48 @@
+package de.haug.gral;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event spanning a shortest path query on the environment graph.
+ */
+@Name("de.haug.gral.PathQuery")
+@Label("Topology Path Query")
+@Category({"GRAL", "Topology"})
+@StackTrace(false)
+@Threshold("1 ms")
+class PathQueryEvent extends Event {
+    @Label("Start Node Id")
+    long startId;
+
+    @Label("Destination Node Id")
+    long destId;
+
+    @Label("Result Size")
+    int resultSize;
+
+    @Label("Path Weight")
+    double weight;
+
+    /**
+     * Ends the event and commits it if the event is enabled
+     * @param start Start of the path
+     * @param dest Destination of the path
+     * @param resultSize Number of edges in the path
+     * @param weight Total weight of the path
+     */
+    void finish(Node start, Node dest, int resultSize, double weight) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.startId = start.getId();
+        this.destId = dest.getId();
+        this.resultSize = resultSize;
+        this.weight = weight;
+        commit();
+    }
+}
@@ -6,6 +6,11 @@ public class Relay extends Node {
      */
     private float radius;
 
+    /**
+     * Shared position exactly at this relay
+     */
+    private final Position exactPosition = new Position(this, this, 0, 0);
+
     /**
      * Constructs a new relay node.
      * @param id The id of the new relay node (has to stay clear of sensor ids)
@@ -41,6 +46,13 @@ public class Relay extends Node {
         //return 10;
     }
 
+    /**
+     * @return The shared position exactly at this relay
+     */
+    Position getExactPosition() {
+        return exactPosition;
+    }
+
     /**
      * @return Human-readable description
      */
@@ -1,8 +1,12 @@
 package de.haug.gral;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 /**
  * Class for the sensors that will move and create packages
@@ -30,22 +34,43 @@ public class Sensor extends Node {
     private Position lastKnownPosition = null;
 
     /**
-     * Checkpoints at which positions shall be set accordingly
+     * Checkpoints at which positions shall be set accordingly, ordered by their timestamp.
+     * Only the most recently added checkpoint is kept for each timestamp.
      */
-    private List<RendezVous> checkpoints;
+    private NavigableMap<Long, RendezVous> checkpoints;
 
     /**
      * Las epoch purge time
      */
     private long lastPurge = Long.MIN_VALUE;
 
+    /**
+     * Moving average of the speed during the voyages of the sensor or NaN if none was observed yet
+     */
+    private double typicalSpeed = Double.NaN;
+
+    /**
+     * Whether epochs store packages without contacts compactly
+     */
+    private boolean compactPackages = false;
+
+    /**
+     * Stages of the baseline algorithm, created when the first package is fed into it
+     */
+    private BaselineSegmenter baselineSegmenter = null;
+
+    /**
+     * Weight of the most recent voyage in the typical speed
+     */
+    private static final double SPEED_SMOOTHING = .2;
+
     /**
      * Constructs a new instance
      * @param id Unique sensor id in the id namespace
      */
     public Sensor(long id) {
         super(id);
-        checkpoints = new LinkedList<>();
+        checkpoints = new TreeMap<>();
         mysteryEpochs = new LinkedList<>();
         if (!Node.isSensor(id)) {
             throw new RuntimeException("Id does not match Sensor status");
@@ -77,6 +102,14 @@ public class Sensor extends Node {
         return mysteryEpochs.get(mysteryEpochs.size() - 1);
     }
 
+    /**
+     * @return The baseline stages of the sensor
+     */
+    BaselineSegmenter getBaselineSegmenter() {
+        if (baselineSegmenter == null) baselineSegmenter = new BaselineSegmenter();
+        return baselineSegmenter;
+    }
+
     /**
      * @return The epoch list
      */
@@ -84,6 +117,17 @@ public class Sensor extends Node {
         return mysteryEpochs;
     }
 
+    /**
+     * @return The number of packages in all unresolved epochs
+     */
+    int getPendingPackageCount() {
+        int count = 0;
+        for (Epoch e : mysteryEpochs) {
+            count += e.getPackages().size();
+        }
+        return count;
+    }
+
     /**
      * Adds a new epoch of a given type and sets lastEpochEnd accordingly
      * @param t The new Epoch's type
@@ -93,14 +137,19 @@ public class Sensor extends Node {
         if (mysteryEpochs.size() > 0) {
             this.lastEpochEnd = getLatestEpoch().getEndTime();
         }
-        if (!pristine) {
-            mysteryEpochs.add(new Epoch(t, p, lastEpochEnd));
-            return;
-        }
-        mysteryEpochs.add(new Epoch(t, p));
+        Epoch epoch = pristine ? new Epoch(t, p) : new Epoch(t, p, lastEpochEnd);
+        epoch.setCompaction(compactPackages);
+        mysteryEpochs.add(epoch);
         pristine = false;
     }
 
+    /**
+     * @param compactPackages Whether epochs added from now on shall store packages without contacts compactly
+     */
+    void setCompactPackages(boolean compactPackages) {
+        this.compactPackages = compactPackages;
+    }
+
     /**
      * Deletes a number of epochs and returns a list of their packages
      * @param count Number of epochs to delete, starting with the most recent
@@ -109,15 +158,86 @@ public class Sensor extends Node {
     List<Package> mergeAndClearEpochs(int count) {
         List<Package> result = new LinkedList<>();
         for (int i = count - 1; i >= 0; i--) {
+            updateTypicalSpeed(mysteryEpochs.get(i));
             result.addAll(0, mysteryEpochs.get(i).getPackages());
             mysteryEpochs.remove(i);
         }
         this.lastEpochEnd = result.get(result.size() - 1).getTimestamp();
         this.lastKnownPosition = result.get(result.size() - 1).position;
         this.lastPurge = this.lastEpochEnd;
+        expireCheckpoints();
         return result;
     }
 
+    /**
+     * Removes all packages older than a deadline from the unresolved epochs.
+     * Call markLocalized with the last removed package once it has been assigned a position.
+     * @param deadline Exclusive upper timestamp boundary of the packages to remove
+     * @return The removed packages, oldest first
+     */
+    List<Package> expirePackages(long deadline) {
+        List<Package> result = new LinkedList<>();
+        while (mysteryEpochs.size() > 0) {
+            Epoch oldest = mysteryEpochs.get(0);
+            if (oldest.getEndTime() >= deadline) {
+                result.addAll(oldest.removePackagesBefore(deadline));
+                break;
+            }
+
+            result.addAll(oldest.getPackages());
+            mysteryEpochs.remove(0);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the last known state of the sensor to a package that has been localized outside of the epoch sequence
+     * @param p The most recent localized package
+     */
+    void markLocalized(Package p) {
+        this.lastEpochEnd = p.getTimestamp();
+        this.lastPurge = this.lastEpochEnd;
+        if (p.getPosition() != null) {
+            this.lastKnownPosition = p.getPosition();
+        }
+        expireCheckpoints();
+    }
+
+    /**
+     * Includes the speed of a localized voyage epoch in the typical speed of the sensor
+     * @param e The localized epoch
+     */
+    private void updateTypicalSpeed(Epoch e) {
+        if (e.getType() != Epoch.EpochType.VOYAGE || e.getDuration() <= 0) return;
+
+        double speed;
+        try {
+            speed = e.getAverageSpeed();
+        } catch (EpochException ex) {
+            return;
+        }
+
+        if (Double.isNaN(typicalSpeed)) {
+            typicalSpeed = speed;
+        } else {
+            typicalSpeed = (1 - SPEED_SMOOTHING) * typicalSpeed + SPEED_SMOOTHING * speed;
+        }
+    }
+
+    /**
+     * @return The moving average of the speed during the voyages of the sensor or NaN if none was observed yet
+     */
+    double getTypicalSpeed() {
+        return typicalSpeed;
+    }
+
+    /**
+     * @return Timestamp of the package the last known position belongs to or Long.MIN_VALUE if there is none
+     */
+    long getLastPurge() {
+        return lastPurge;
+    }
+
     /**
      * @return The last known sensor position
      */
@@ -131,7 +251,7 @@ public class Sensor extends Node {
      */
     void addRendezVous(RendezVous rendezVous) {
         if (rendezVous.getTimestamp() > lastPurge) {
-            checkpoints.add(rendezVous);
+            checkpoints.put(rendezVous.getTimestamp(), rendezVous);
         }
     }
 
@@ -142,30 +262,28 @@ public class Sensor extends Node {
      * @return A checkpoint if one is present and matches the parameters or null
      */
     RendezVous getCheckpoint(long start, long end) {
-        RendezVous mostRecent = null;
-        LinkedList<RendezVous> junk = new LinkedList<>();
-
-        for (RendezVous rdv : checkpoints) {
-            if (end > rdv.getTimestamp()) {
-                if (start < rdv.getTimestamp()) {
-                    if (mostRecent == null) {
-                        mostRecent = rdv;
-                    } else if (mostRecent.getTimestamp() > rdv.getTimestamp()) {
-                        junk.add(rdv);
-                    } else {
-                        junk.add(mostRecent);
-                        mostRecent = rdv;
-                    }
-                } else {
-                    junk.add(rdv);
-                }
-            }
-        }
+        NavigableMap<Long, RendezVous> stale = checkpoints.headMap(end, false);
+        Map.Entry<Long, RendezVous> mostRecent = stale.lastEntry();
 
-        checkpoints.removeAll(junk);
-        checkpoints.remove(mostRecent);
+        // Every rendez-vous before end is either consumed or superseded by the most recent one
+        stale.clear();
 
-        return mostRecent;
+        if (mostRecent == null || mostRecent.getKey() <= start) return null;
+        return mostRecent.getValue();
+    }
+
+    /**
+     * Removes all checkpoints that are not newer than the last epoch purge
+     */
+    private void expireCheckpoints() {
+        checkpoints.headMap(lastPurge, true).clear();
+    }
+
+    /**
+     * @return The number of checkpoints that are waiting to be used
+     */
+    int getCheckpointCount() {
+        return checkpoints.size();
     }
 
     /**
@@ -173,14 +291,14 @@ public class Sensor extends Node {
      * @return The last relay contact id number or null if there was no last relay
      */
     Long getLastRelayContactId(long timestampBound) {
-        for (int i = getMysteryEpochs().size() - 1; i >= 0; i--) {
-            Epoch e = getMysteryEpochs().get(i);
-            Package latestPackage = e.getLatest();
-            if (latestPackage.getTimestamp() > timestampBound) return null;
-
-            WirelessContact relayCandidate = latestPackage.getStrongestRelay();
-            if (relayCandidate != null) {
-                return relayCandidate.getNodeId();
+        ListIterator<Epoch> iterator = mysteryEpochs.listIterator(mysteryEpochs.size());
+        while (iterator.hasPrevious()) {
+            Epoch e = iterator.previous();
+            if (e.getEndTime() > timestampBound) return null;
+
+            Long relayId = e.getLatestRelayId();
+            if (relayId != null) {
+                return relayId;
             }
         }
 
@@ -200,27 +318,16 @@ public class Sensor extends Node {
     }
 
     /**
-     * @return A list of RendezVous as checkpoints
+     * @return The RendezVous checkpoints ordered by their timestamp
      */
-    List<RendezVous> getCheckpoints() {
-        return checkpoints;
+    Collection<RendezVous> getCheckpoints() {
+        return checkpoints.values();
     }
 
     /**
      * @param checkpoint Checkpoint that is consumed by location
      */
     void useCheckpoint(RendezVous checkpoint) {
-        checkpoints.remove(checkpoint);
-    }
-
-    /**
-     * Adds the sensor id to the sensors map if it is not already present
-     * @param id The id to check for in the map
-     * @param sensors The sensors map
-     */
-    static void ensureAddedSensor(Long id, Map<Long, Sensor> sensors) {
-        if (!sensors.containsKey(id)) {
-            sensors.put(id, new Sensor(id));
-        }
+        checkpoints.remove(checkpoint.getTimestamp(), checkpoint);
     }
 }
@@ -0,0 +1,152 @@
+package de.haug.gral;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of the known sensors by id. Every sensor occupies a dense int slot that is looked up with a primitive
+ * hash map, so neither the lookup nor the storage boxes the ids.
+ * Iteration follows the order in which the sensors were registered.
+ */
+class SensorRegistry extends AbstractMap<Long, Sensor> implements Serializable {
+    /**
+     * Slot of each sensor id
+     */
+    private final LongIntHashMap slots = new LongIntHashMap();
+
+    /**
+     * Sensors by slot
+     */
+    private Sensor[] sensors = new Sensor[16];
+
+    /**
+     * Sensor ids by slot
+     */
+    private long[] ids = new long[16];
+
+    private int size = 0;
+
+    /**
+     * Whether the sensors store packages without contacts compactly
+     */
+    private boolean compactPackages = false;
+
+    /**
+     * @param id The sensor id
+     * @return The sensor with that id or null if it is unknown
+     */
+    Sensor get(long id) {
+        int slot = slots.get(id);
+        return slot == LongIntHashMap.NO_VALUE ? null : sensors[slot];
+    }
+
+    /**
+     * Returns the sensor with an id and registers a new sensor if it is unknown
+     * @param id The sensor id
+     * @return The registered sensor
+     */
+    Sensor getOrCreate(long id) {
+        int slot = slots.get(id);
+        if (slot != LongIntHashMap.NO_VALUE) return sensors[slot];
+
+        Sensor s = new Sensor(id);
+        s.setCompactPackages(compactPackages);
+        register(id, s);
+        return s;
+    }
+
+    /**
+     * @param compactPackages Whether all sensors shall store packages without contacts compactly from now on
+     */
+    void setCompactPackages(boolean compactPackages) {
+        this.compactPackages = compactPackages;
+        for (int i = 0; i < size; i++) {
+            sensors[i].setCompactPackages(compactPackages);
+        }
+    }
+
+    @Override
+    public Sensor get(Object key) {
+        return key instanceof Long ? get((long)(Long)key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && slots.get((Long)key) != LongIntHashMap.NO_VALUE;
+    }
+
+    @Override
+    public Sensor put(Long id, Sensor s) {
+        if (s == null) throw new NullPointerException("Sensors cannot be null");
+
+        int slot = slots.get(id);
+        if (slot == LongIntHashMap.NO_VALUE) {
+            register(id, s);
+            return null;
+        }
+
+        Sensor previous = sensors[slot];
+        sensors[slot] = s;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        slots.clear();
+        Arrays.fill(sensors, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<Long, Sensor>> entrySet() {
+        return new AbstractSet<Entry<Long, Sensor>>() {
+            @Override
+            public Iterator<Entry<Long, Sensor>> iterator() {
+                return new Iterator<Entry<Long, Sensor>>() {
+                    private int slot = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < size;
+                    }
+
+                    @Override
+                    public Entry<Long, Sensor> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        Entry<Long, Sensor> entry = new SimpleImmutableEntry<>(ids[slot], sensors[slot]);
+                        slot++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Assigns the next free slot to a sensor
+     */
+    private void register(long id, Sensor s) {
+        if (size == sensors.length) {
+            sensors = Arrays.copyOf(sensors, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        sensors[size] = s;
+        ids[size] = id;
+        slots.put(id, size++);
+    }
+}
@@ -0,0 +1,32 @@
+package de.haug.gral;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a sensor that the adaptive strategy switches between GRAL and the baseline.
+ */
+@Name("de.haug.gral.StrategySwitch")
+@Label("Localization Strategy Switch")
+@Category({"GRAL", "Localization"})
+@StackTrace(false)
+class StrategySwitchEvent extends Event {
+    @Label("Sensor Id")
+    long sensorId;
+
+    @Label("To Baseline")
+    @Description("Whether the sensor is switched to the baseline or back to GRAL")
+    boolean toBaseline;
+
+    @Label("Backlog")
+    @Description("Number of packages waiting to be fed when the sensor is switched")
+    int backlog;
+
+    @Label("Package Count")
+    @Description("Number of pending packages handed over to the other algorithm")
+    int packageCount;
+}
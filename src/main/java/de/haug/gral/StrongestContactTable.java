@@ -0,0 +1,154 @@
+package de.haug.gral;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Table of the package with the strongest contact to each encountered sensor of an epoch.
+ * The strength of that contact is cached next to the package. Entries are kept in the order in which the sensors
+ * were first encountered, also when packages are removed. Path rectification visits the contacts of an epoch in this
+ * order, so it splits the epoch at the earliest contact first instead of in the hash order of the sensor ids.
+ */
+class StrongestContactTable implements Serializable {
+    /**
+     * Entry index of each sensor id
+     */
+    private LongIntHashMap index = new LongIntHashMap(4);
+
+    private long[] ids = new long[4];
+    private float[] strengths = new float[4];
+    private Package[] packages = new Package[4];
+    private int size = 0;
+
+    /**
+     * Makes p the strongest package for a sensor if its contact is at least as strong as the current one
+     * @param id The sensor id
+     * @param strength The strength of the contact of p to the sensor
+     * @param p The package
+     */
+    void offer(long id, float strength, Package p) {
+        int i = index.get(id);
+        if (i == LongIntHashMap.NO_VALUE) {
+            append(id, strength, p);
+        } else if (strengths[i] <= strength) {
+            strengths[i] = strength;
+            packages[i] = p;
+        }
+    }
+
+    /**
+     * Offers all sensor contacts of a package
+     * @param p The package
+     */
+    void offer(Package p) {
+        for (WirelessContact wc : p.contacts) {
+            if (Node.isSensor(wc.getNodeId())) {
+                offer(wc.getNodeId(), wc.getStrength(), p);
+            }
+        }
+    }
+
+    /**
+     * @param id The sensor id
+     * @return The package with the strongest contact to the sensor or null if it was not encountered
+     */
+    Package get(long id) {
+        int i = index.get(id);
+        return i == LongIntHashMap.NO_VALUE ? null : packages[i];
+    }
+
+    /**
+     * @return A copy of the encountered sensor ids
+     */
+    long[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @return The number of encountered sensors
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries
+     */
+    void clear() {
+        index.clear();
+        Arrays.fill(packages, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Updates the table after packages have been removed. Entries that still refer to a remaining package stay
+     * valid since that package was the strongest among a superset of the remaining packages.
+     * Only the sensors whose strongest package was removed are looked up again in the remaining packages. They keep
+     * their place in the table unless none of the remaining packages has a contact to them.
+     * @param removed The removed packages
+     * @param remaining The packages that are left, ordered by timestamp
+     */
+    void remove(List<Package> removed, List<Package> remaining) {
+        Set<Package> removedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        removedSet.addAll(removed);
+
+        long[] oldIds = ids;
+        float[] oldStrengths = strengths;
+        Package[] oldPackages = packages;
+        int oldSize = size;
+
+        index = new LongIntHashMap(Math.max(4, oldSize));
+        ids = new long[oldIds.length];
+        strengths = new float[oldStrengths.length];
+        packages = new Package[oldPackages.length];
+        size = 0;
+
+        // Sensors whose strongest package was removed keep their place until it is looked up again
+        boolean[] stale = null;
+        for (int i = 0; i < oldSize; i++) {
+            if (removedSet.contains(oldPackages[i])) {
+                if (stale == null) stale = new boolean[oldSize];
+                stale[i] = true;
+                append(oldIds[i], Float.NEGATIVE_INFINITY, null);
+            } else {
+                append(oldIds[i], oldStrengths[i], oldPackages[i]);
+            }
+        }
+
+        if (stale == null) return;
+
+        for (Package p : remaining) {
+            for (WirelessContact wc : p.contacts) {
+                int i = index.get(wc.getNodeId());
+                if (i != LongIntHashMap.NO_VALUE && stale[i]) {
+                    offer(wc.getNodeId(), wc.getStrength(), p);
+                }
+            }
+        }
+
+        // Drop the sensors none of the remaining packages has a contact to
+        int oldEntries = size;
+        index.clear();
+        size = 0;
+        for (int i = 0; i < oldEntries; i++) {
+            if (packages[i] != null) append(ids[i], strengths[i], packages[i]);
+        }
+        Arrays.fill(packages, size, oldEntries, null);
+    }
+
+    private void append(long id, float strength, Package p) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            strengths = Arrays.copyOf(strengths, size * 2);
+            packages = Arrays.copyOf(packages, size * 2);
+        }
+        ids[size] = id;
+        strengths[size] = strength;
+        packages[size] = p;
+        index.put(id, size++);
+    }
+}
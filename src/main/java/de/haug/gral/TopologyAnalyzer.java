@@ -2,9 +2,13 @@ package de.haug.gral;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jgrapht.*;
 import org.jgrapht.alg.interfaces.ShortestPathAlgorithm;
@@ -27,11 +31,39 @@ public class TopologyAnalyzer implements Serializable {
     @SuppressWarnings("WeakerAccess")
     protected Map<Long, Relay> relays;
 
+    /**
+     * Shared positions at the source and at the target of each edge, created on first use
+     */
+    private final Map<DefaultWeightedEdge, Position[]> edgeEndPositions = new IdentityHashMap<>();
+
+    /**
+     * Default maximum number of memoized confluence queries, the least recently used query is evicted beyond it
+     */
+    static final int CONFLUENCE_CACHE_SIZE = 4096;
+
+    /**
+     * Memoized results of getEarliestConfluence, invalidated whenever the topology changes.
+     * Accesses have to synchronize on the cache since even lookups reorder it.
+     */
+    private final ConfluenceCache confluenceCache;
+
+    private final AtomicLong confluenceCacheHits = new AtomicLong();
+    private final AtomicLong confluenceCacheMisses = new AtomicLong();
+
     /**
      * Constructor
      */
     public TopologyAnalyzer() {
+        this(CONFLUENCE_CACHE_SIZE);
+    }
+
+    /**
+     * Constructor
+     * @param confluenceCacheSize Maximum number of memoized confluence queries
+     */
+    TopologyAnalyzer(int confluenceCacheSize) {
         relays = new HashMap<>();
+        confluenceCache = new ConfluenceCache(confluenceCacheSize);
     }
 
     /**
@@ -40,9 +72,7 @@ public class TopologyAnalyzer implements Serializable {
      */
     @SuppressWarnings("WeakerAccess")
     public void addRelay(long id) {
-        Relay r = new Relay(id);
-        relays.put(id, r);
-        g.addVertex(r);
+        addRelay(new Relay(id));
     }
 
     /**
@@ -52,9 +82,17 @@ public class TopologyAnalyzer implements Serializable {
      */
     @SuppressWarnings("WeakerAccess")
     public void addRelay(long id, float radius) {
-        Relay r = new Relay(id, radius);
-        relays.put(id, r);
+        addRelay(new Relay(id, radius));
+    }
+
+    /**
+     * Adds a relay to the graph
+     * @param r The new relay
+     */
+    private void addRelay(Relay r) {
+        relays.put(r.getId(), r);
         g.addVertex(r);
+        clearConfluenceCache();
     }
 
     /**
@@ -69,6 +107,10 @@ public class TopologyAnalyzer implements Serializable {
         if (start == null || dest == null) throw new RuntimeException("Start or destination vertex not yet added");
         g.addEdge(start, dest);
         g.setEdgeWeight(start, dest, weight);
+        clearConfluenceCache();
+
+        // The weight of an existing edge may have changed
+        edgeEndPositions.remove(g.getEdge(start, dest));
     }
 
     /**
@@ -80,12 +122,9 @@ public class TopologyAnalyzer implements Serializable {
         addRelay(1003);
         addRelay(1004);
 
-        g.addEdge(getRelay(1001L), getRelay(1002L));
-        g.setEdgeWeight(getRelay(1001L), getRelay(1002L), 50);
-        g.addEdge(getRelay(1004L), getRelay(1002L));
-        g.setEdgeWeight(getRelay(1004L), getRelay(1002L), 50);
-        g.addEdge(getRelay(1002L), getRelay(1003L));
-        g.setEdgeWeight(getRelay(1002L), getRelay(1003L), 50);
+        addEdge(1001L, 1002L, 50);
+        addEdge(1004L, 1002L, 50);
+        addEdge(1002L, 1003L, 50);
 
         //g.addEdge(getRelay(1003L), getRelay(1002L));
         //g.setEdgeWeight(getRelay(1003L), getRelay(1002L), 70);
@@ -110,9 +149,12 @@ public class TopologyAnalyzer implements Serializable {
     private GraphPath<Node, DefaultWeightedEdge> getShortestPath(Node startRelay, Node destRelay) {
         if (startRelay == null || destRelay == null) throw new NoSuchElementException("Ids not found");
 
+        PathQueryEvent event = new PathQueryEvent();
+        event.begin();
         ShortestPathAlgorithm<Node, DefaultWeightedEdge> shortestPathAlg = new DijkstraShortestPath<>(g);
         GraphPath<Node, DefaultWeightedEdge> path = shortestPathAlg.getPath(startRelay, destRelay);
         if (path == null) throw new RuntimeException("No such path in graph");
+        event.finish(startRelay, destRelay, path.getLength(), path.getWeight());
         return path;
     }
 
@@ -141,7 +183,7 @@ public class TopologyAnalyzer implements Serializable {
             double weight = g.getEdgeWeight(e);
 
             if (weight >= leftWeight) {
-                return new Position(g.getEdgeSource(e), g.getEdgeTarget(e), leftWeight, (float) weight);
+                return getEdgePosition(e, leftWeight, (float) weight);
             } else {
                 leftWeight -= weight;
             }
@@ -150,6 +192,26 @@ public class TopologyAnalyzer implements Serializable {
         throw new RuntimeException("Path is shorter than length of position argument");
     }
 
+    /**
+     * Creates a position on an edge, positions exactly at the source or at the target of the edge are shared instances
+     * @param e An edge of the graph
+     * @param offset Distance from the source of the edge
+     * @param weight Weight of the edge
+     * @return Position that shares its start and destination nodes with the edge
+     */
+    private Position getEdgePosition(DefaultWeightedEdge e, float offset, float weight) {
+        int end;
+        if (Float.floatToIntBits(offset) == Float.floatToIntBits(0f)) end = 0;
+        else if (offset == weight) end = 1;
+        else return new Position(g.getEdgeSource(e), g.getEdgeTarget(e), offset, weight);
+
+        Position[] positions = edgeEndPositions.computeIfAbsent(e, k -> new Position[2]);
+        if (positions[end] == null) {
+            positions[end] = new Position(g.getEdgeSource(e), g.getEdgeTarget(e), offset, weight);
+        }
+        return positions[end];
+    }
+
     /**
      * Given a position that is equivalent to a graph edge,
      * the method returns an equivalent position with specified start and end points
@@ -224,6 +286,66 @@ public class TopologyAnalyzer implements Serializable {
      * @return Earliest node that is on the path of both start1 and start2 to dest
      */
     Node getEarliestSharedNode(Node start1, Node start2, Node dest) {
+        return getEarliestConfluence(start1, start2, dest).node;
+    }
+
+    /**
+     * Memoized version of getEarliestSharedNode that also provides the distance to the shared node
+     * @param start1 First source node
+     * @param start2 Second source node
+     * @param dest Destination of the shared paths
+     * @return Earliest node that is on the path of both start1 and start2 to dest and its distance from start1
+     */
+    Confluence getEarliestConfluence(Node start1, Node start2, Node dest) {
+        if (start1 == null || start2 == null || dest == null) throw new NoSuchElementException("Ids not found");
+
+        ConfluenceKey key = new ConfluenceKey(start1.getId(), start2.getId(), dest.getId());
+        Confluence confluence;
+        synchronized (confluenceCache) {
+            confluence = confluenceCache.get(key);
+        }
+        if (confluence != null) {
+            confluenceCacheHits.incrementAndGet();
+            return confluence;
+        }
+
+        // Concurrent misses of the same query calculate it twice, which is cheaper than holding the lock
+        confluenceCacheMisses.incrementAndGet();
+        Node node = findEarliestSharedNode(start1, start2, dest);
+        confluence = new Confluence(node, getDistance(start1.getId(), node.getId()));
+
+        synchronized (confluenceCache) {
+            confluenceCache.put(key, confluence);
+        }
+        return confluence;
+    }
+
+    private void clearConfluenceCache() {
+        synchronized (confluenceCache) {
+            confluenceCache.clear();
+        }
+    }
+
+    /**
+     * @return Number of confluence queries answered from the cache
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getConfluenceCacheHits() {
+        return confluenceCacheHits.get();
+    }
+
+    /**
+     * @return Number of confluence queries that had to be calculated
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getConfluenceCacheMisses() {
+        return confluenceCacheMisses.get();
+    }
+
+    /**
+     * Uncached implementation of getEarliestSharedNode
+     */
+    private Node findEarliestSharedNode(Node start1, Node start2, Node dest) {
         GraphPath<Node, DefaultWeightedEdge> path1 = getShortestPath(start1, dest);
         GraphPath<Node, DefaultWeightedEdge> path2 = getShortestPath(start2, dest);
 
@@ -267,4 +389,69 @@ public class TopologyAnalyzer implements Serializable {
 
         return false;
     }
+
+    /**
+     * Result of a confluence query
+     */
+    static final class Confluence implements Serializable {
+        /**
+         * Earliest node shared by both paths
+         */
+        final Node node;
+
+        /**
+         * Distance from the first source node to node
+         */
+        final float distance;
+
+        Confluence(Node node, float distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * Confluence queries in the order of their last use, evicting the least recently used one when full
+     */
+    private static final class ConfluenceCache extends LinkedHashMap<ConfluenceKey, Confluence> {
+        private final int capacity;
+
+        ConfluenceCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ConfluenceKey, Confluence> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Cache key of a confluence query
+     */
+    private static final class ConfluenceKey implements Serializable {
+        private final long start1;
+        private final long start2;
+        private final long dest;
+
+        ConfluenceKey(long start1, long start2, long dest) {
+            this.start1 = start1;
+            this.start2 = start2;
+            this.dest = dest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ConfluenceKey)) return false;
+            ConfluenceKey that = (ConfluenceKey) o;
+            return start1 == that.start1 && start2 == that.start2 && dest == that.dest;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start1, start2, dest);
+        }
+    }
 }
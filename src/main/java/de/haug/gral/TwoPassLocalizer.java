@@ -0,0 +1,231 @@
+package de.haug.gral;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Localizes a package file with the baseline algorithm in two passes instead of buffering the packages between the
+ * relay peaks of every sensor.
+ * The baseline localizes the packages of a sensor between the peaks of its relay contacts, i.e. the packages with the
+ * strongest signal of every run of packages with the same strongest relay. The first pass only builds an index of
+ * these peaks per sensor, the second pass reads the file again and localizes every package as soon as it is read
+ * using the peaks that bracket it. Memory is proportional to the number of sensors and peaks instead of packages.
+ * The positions are the same as those of Locator.baseLineProcess, but the packages are output in file order.
+ */
+class TwoPassLocalizer {
+    private final TopologyAnalyzer topologyAnalyzer;
+    private final List<Long[]> applyPairs;
+    private final Map<Long, PeakIndex> indices = new HashMap<>();
+
+    /**
+     * Constructs a new two-pass localizer
+     * @param topologyAnalyzer The populated TopologyAnalyzer
+     * @param applyPairs Endpoint pairs applied to the output positions
+     */
+    TwoPassLocalizer(TopologyAnalyzer topologyAnalyzer, List<Long[]> applyPairs) {
+        this.topologyAnalyzer = topologyAnalyzer;
+        this.applyPairs = applyPairs;
+    }
+
+    /**
+     * Localizes all packages of a file and writes the localized ones in file order
+     * @param input The package file
+     * @param out The output stream
+     * @throws IOException Thrown if the file cannot be read
+     * @throws InterruptedException Thrown if the thread is interrupted
+     */
+    void run(Path input, PrintStream out) throws IOException, InterruptedException {
+        indices.clear();
+        new PackageFileReader(input, null, line -> {
+            Package p = parse(line, true);
+            if (p != null) index(p);
+        }).read(false);
+
+        finishIndex();
+
+        new PackageFileReader(input, null, line -> {
+            Package p = parse(line, false);
+            if (p != null && localize(p)) {
+                out.println(p.toJsonString(false, applyPairs, topologyAnalyzer));
+            }
+        }).read(false);
+    }
+
+    /**
+     * @return The number of indexed peaks of all sensors
+     */
+    long getPeakCount() {
+        long count = 0;
+        for (PeakIndex index : indices.values()) {
+            count += index.size;
+        }
+        return count;
+    }
+
+    private static Package parse(String line, boolean report) {
+        try {
+            return Main.parsePackage(new JSONObject(line));
+        } catch (JSONException e) {
+            // Malformed lines are reported once in the first pass
+            if (report) System.err.printf("Ignoring malformed line %s\n", line);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a package to the peak index of its sensor during the first pass
+     */
+    void index(Package p) {
+        indices.computeIfAbsent(p.getSensorId(), k -> new PeakIndex()).add(p);
+    }
+
+    /**
+     * Ends the first pass
+     */
+    void finishIndex() {
+        for (PeakIndex index : indices.values()) {
+            index.finish();
+        }
+    }
+
+    /**
+     * Localizes a package during the second pass
+     * @param p The package, in the same order as in the first pass
+     * @return Whether p has been localized
+     */
+    boolean localize(Package p) {
+        PeakIndex index = indices.get(p.getSensorId());
+        long ordinal = index.next++;
+
+        // Packages up to the first peak cannot be localized
+        while (index.cursor < index.size && index.ordinals[index.cursor] < ordinal) {
+            index.cursor++;
+        }
+        if (index.cursor == 0) return false;
+
+        int start = index.cursor - 1;
+        long endRelay;
+        long endTimestamp;
+        if (index.cursor < index.size) {
+            endRelay = index.relays[index.cursor];
+            endTimestamp = index.timestamps[index.cursor];
+        } else {
+            // Packages behind the last peak end with the last package of the sensor, if it has a relay contact
+            if (!index.lastHasRelay) return false;
+            endRelay = index.lastRelay;
+            endTimestamp = index.lastTimestamp;
+        }
+
+        if (index.distanceCursor != index.cursor) {
+            index.distance = topologyAnalyzer.getDistance(index.relays[start], endRelay);
+            index.distanceCursor = index.cursor;
+        }
+        float dist = index.distance;
+        float timeDelta = endTimestamp - index.timestamps[start];
+        float elapsed = p.getTimestamp() - index.timestamps[start];
+        p.setPosition(new Position(
+                topologyAnalyzer.getRelay(index.relays[start]),
+                topologyAnalyzer.getRelay(endRelay),
+                Math.min(dist * elapsed / timeDelta, dist),
+                dist));
+        return true;
+    }
+
+    /**
+     * Relay peaks of a sensor. The first pass follows the runs of packages with the same strongest relay like
+     * Locator.baseLineProcess and records the last package with the strongest signal of every run.
+     */
+    private static final class PeakIndex {
+        long[] ordinals = new long[4];
+        long[] timestamps = new long[4];
+        long[] relays = new long[4];
+        int size = 0;
+
+        /**
+         * Number of packages of the sensor in the first pass
+         */
+        long count = 0;
+
+        /**
+         * Relay of the last peak, packages with its strongest signal do not start a run
+         */
+        long lastPeakRelay = -1;
+
+        boolean runActive = false;
+        long runRelay;
+        float runMaxStrength;
+        long runMaxOrdinal;
+        long runMaxTimestamp;
+
+        boolean lastHasRelay = false;
+        long lastRelay;
+        long lastTimestamp;
+
+        /**
+         * Ordinal of the next package of the sensor in the second pass
+         */
+        long next = 0;
+
+        /**
+         * Index of the first peak at or behind the current package in the second pass
+         */
+        int cursor = 0;
+
+        float distance;
+        int distanceCursor = -1;
+
+        void add(Package p) {
+            long ordinal = count++;
+            WirelessContact strongest = p.getStrongestRelay();
+
+            if (runActive && (strongest == null || strongest.getNodeId() != runRelay)) finishRun();
+
+            lastHasRelay = strongest != null;
+            lastTimestamp = p.getTimestamp();
+            if (strongest == null) return;
+            lastRelay = strongest.getNodeId();
+            if (lastRelay == lastPeakRelay) return;
+
+            if (!runActive) {
+                runActive = true;
+                runRelay = lastRelay;
+                runMaxStrength = Float.NEGATIVE_INFINITY;
+            }
+            if (strongest.getStrength() >= runMaxStrength) {
+                runMaxStrength = strongest.getStrength();
+                runMaxOrdinal = ordinal;
+                runMaxTimestamp = p.getTimestamp();
+            }
+        }
+
+        /**
+         * Closes the last run at the end of the first pass
+         */
+        void finish() {
+            if (runActive) finishRun();
+        }
+
+        private void finishRun() {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                relays = Arrays.copyOf(relays, size * 2);
+            }
+            ordinals[size] = runMaxOrdinal;
+            timestamps[size] = runMaxTimestamp;
+            relays[size] = runRelay;
+            size++;
+
+            lastPeakRelay = runRelay;
+            runActive = false;
+        }
+    }
+}